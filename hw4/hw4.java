@@ -12,6 +12,13 @@
 
 // import lists and other data structures from the Java standard library
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 
 // PROBLEM 1
 
@@ -19,6 +26,7 @@ import java.util.*;
 interface Exp {
     double eval(); 	                       // Problem 1a
     List<Instr> compile(); 	               // Problem 1c
+    double eval(double[] vars);            // vars[i] is the value of Var i
 }
 
 class Num implements Exp {
@@ -26,10 +34,14 @@ class Num implements Exp {
 
     public boolean equals(Object o) { return (o instanceof Num) && ((Num)o).val == this.val; }
 
+    // 0.0 == -0.0, so they must hash the same
+    public int hashCode() { return Double.hashCode(val == 0.0 ? 0.0 : val); }
+
     public String toString() { return "" + val; }
 
     public Num(double val) { this.val = val; }
     public double eval() { return val; }
+    public double eval(double[] vars) { return val; }
 
     public List<Instr> compile() {
         List<Instr> list = new LinkedList<Instr>();
@@ -39,8 +51,21 @@ class Num implements Exp {
 }
 
 class BinOp implements Exp {
-    protected Exp left, right;
-    protected Op op;
+    protected final Exp left, right;
+    protected final Op op;
+    // worked out once from the operands' hashes, which a BinOp operand has already cached,
+    // so hashCode is constant time and never recurses, however deep the tree
+    private final int hash;
+    // set by Optimizer on a node that it found in more than one place, so that compile
+    // emits it once, keeps its value in a local, and recalls it everywhere else. Optimizer
+    // only sets it on nodes it built itself, never on the tree it was given.
+    protected boolean shared;
+    // set by Optimizer on a node with a shared node below it, which eval must not recurse
+    // into, or it would evaluate the shared node again for every path that reaches it
+    protected boolean aboveShared;
+
+    // how deep eval recurses before it hands the rest of the tree to Postfix
+    protected static final int MAX_EVAL_DEPTH = 1000;
 
     public boolean equals(Object o) {
     	if(!(o instanceof BinOp))
@@ -50,6 +75,8 @@ class BinOp implements Exp {
 		    	this.right.equals(b.right);
     }
 
+    public int hashCode() { return hash; }
+
     public String toString() {
 		return "BinOp(" + left + ", " + op + ", " + right + ")";
     }
@@ -58,18 +85,285 @@ class BinOp implements Exp {
         this.left = left;
         this.op = op;
         this.right = right;
+        this.hash = (left.hashCode() * 31 + op.hashCode()) * 31 + right.hashCode();
     }
 
+    // Recursion is fastest for the small trees usually evaluated, so it is used down to
+    // MAX_EVAL_DEPTH. Deeper subtrees, and trees with shared nodes, are evaluated by
+    // Postfix, so deep trees cannot overflow the stack and shared nodes are computed once.
     public double eval() {
-        return op.calculate(left.eval(), right.eval());
+        return eval(null);
+    }
+
+    // vars may be null for an expression with no variables
+    public double eval(double[] vars) {
+        return aboveShared ? Postfix.eval(this, vars) : eval(vars, 0);
+    }
+
+    private double eval(double[] vars, int depth) {
+        return op.calculate(operand(left, vars, depth), operand(right, vars, depth));
+    }
+
+    private static double operand(Exp exp, double[] vars, int depth) {
+        if (!(exp instanceof BinOp))
+            return vars == null ? exp.eval() : exp.eval(vars);
+        BinOp b = (BinOp) exp;
+        if (b.aboveShared || depth == MAX_EVAL_DEPTH)
+            return Postfix.eval(b, vars);
+        return b.eval(vars, depth + 1);
+    }
+
+    // compiled without recursion, so deep trees cannot overflow the stack
+
+    // Linear in the size of the tree, but it builds an Instr object per instruction, which
+    // for a tree of a million nodes takes a few hundred milliseconds. Callers that only
+    // want to run the result should use Postfix.assemble, which skips the list.
+    public List<Instr> compile() {
+        return Postfix.compile(this);
+    }
+}
+
+// Simplifies expressions so that they compile to fewer instructions. Subtrees of only
+// constants are folded with the same Op.calculate that eval would use, and operations
+// that return their other operand bit for bit are dropped: x*1, 1*x, x/1, x-0.0, and
+// x+(-0.0) and (-0.0)+x. x+0.0 is kept, since it turns -0.0 into 0.0.
+// Equal subtrees are also hash-consed into a single shared node, which is marked so
+// that it compiles once and is recalled wherever else it appears. Every BinOp in the
+// result is new, so the tree passed in is left as it was. The tree is walked
+// with an explicit stack, as Postfix does, so deep trees cannot overflow the stack.
+class Optimizer {
+    // Nodes are interned by the identity of their already interned children rather than
+    // by equals, which treats 0.0 and -0.0 as the same constant
+    private final Map<List<Object>, Exp> interned = new HashMap<List<Object>, Exp>();
+
+    public static Exp optimize(Exp exp) {
+        return new Optimizer().simplify(exp);
+    }
+
+    // marks the end of a BinOp's operands on the work stack
+    private static final Object DONE = new Object();
+
+    // simplify in postfix order: each BinOp is rebuilt once both its operands are simplified
+    public Exp simplify(Exp exp) {
+        ArrayDeque<Object> work = new ArrayDeque<Object>();
+        ArrayDeque<BinOp> open = new ArrayDeque<BinOp>();
+        ArrayDeque<Exp> simplified = new ArrayDeque<Exp>();
+        work.push(exp);
+        while (!work.isEmpty()) {
+            Object next = work.pop();
+            if (next == DONE) {
+                Exp right = simplified.pop();
+                Exp left = simplified.pop();
+                simplified.push(combine(open.pop(), left, right));
+            }
+            else if (next instanceof BinOp) {
+                BinOp b = (BinOp) next;
+                open.push(b);
+                work.push(DONE);
+                work.push(b.right);
+                work.push(b.left);
+            }
+            else
+                simplified.push(leaf((Exp) next));
+        }
+        return simplified.pop();
+    }
+
+    private Exp leaf(Exp exp) {
+        if (exp instanceof Num)
+            return intern(exp, Arrays.asList("num", Double.doubleToRawLongBits(((Num) exp).val)));
+        if (exp instanceof Var)
+            return intern(exp, Arrays.asList("var", ((Var) exp).index));
+        return exp;
+    }
+
+    // b with its operands replaced by their simplified forms left and right
+    private Exp combine(BinOp b, Exp left, Exp right) {
+        if (left instanceof Num && right instanceof Num)
+            return leaf(new Num(b.op.calculate(((Num) left).val, ((Num) right).val)));
+        if (isConstant(right, 1.0) && (b.op == Op.TIMES || b.op == Op.DIVIDE))
+            return left;
+        if (isConstant(left, 1.0) && b.op == Op.TIMES)
+            return right;
+        if ((isConstant(right, -0.0) && b.op == Op.PLUS) || (isConstant(right, 0.0) && b.op == Op.MINUS))
+            return left;
+        if (isConstant(left, -0.0) && b.op == Op.PLUS)
+            return right;
+        BinOp node = new BinOp(left, b.op, right);
+        node.aboveShared = isShared(left) || isShared(right);
+        return intern(node, Arrays.asList(new Identity(left), b.op, new Identity(right)));
+    }
+
+    // A node that is shared later was not yet shared when the nodes above its first
+    // appearance were built, but those nodes only reach it once, so recursing is still fine
+    private static boolean isShared(Exp exp) {
+        return (exp instanceof BinOp) && (((BinOp) exp).shared || ((BinOp) exp).aboveShared);
+    }
+
+    // whether exp is a constant with exactly the bits of val
+    private static boolean isConstant(Exp exp, double val) {
+        return (exp instanceof Num) &&
+            Double.doubleToRawLongBits(((Num) exp).val) == Double.doubleToRawLongBits(val);
+    }
+
+    private Exp intern(Exp exp, List<Object> key) {
+        Exp existing = interned.putIfAbsent(key, exp);
+        if (existing == null)
+            return exp;
+        if (existing instanceof BinOp)
+            ((BinOp) existing).shared = true;
+        return existing;
     }
 
+    // compares by reference, for keys made of interned nodes
+    private static class Identity {
+        private final Object o;
+        Identity(Object o) { this.o = o; }
+        public boolean equals(Object other) { return (other instanceof Identity) && ((Identity) other).o == o; }
+        public int hashCode() { return System.identityHashCode(o); }
+    }
+}
+
+// Walks an expression in postfix order with an explicit work stack instead of recursion,
+// so the depth of the tree is limited only by the heap, and each node is visited exactly
+// once, so the whole walk is linear in the size of the tree. A BinOp marked shared by
+// Optimizer is stored in a local the first time it is computed and recalled from there
+// every time after, so a subtree shared by hash-consing is only walked once.
+class Postfix {
+    private interface Visitor {
+        void num(double val);
+        void var(int index);
+        void op(Op op);
+        void other(Exp exp);
+        void store(int local);
+        void recall(int local);
+    }
+
+    // the work stack holds nodes still to visit, and a DONE for each BinOp whose operands
+    // are being visited; when it is popped, so is that BinOp from the open stack
+    private static final Object DONE = new Object();
+
+    private static void walk(Exp root, Visitor visitor) {
+        ArrayDeque<Object> work = new ArrayDeque<Object>();
+        ArrayDeque<BinOp> open = new ArrayDeque<BinOp>();
+        // the local holding each shared node computed so far
+        Map<BinOp, Integer> locals = new IdentityHashMap<BinOp, Integer>();
+        work.push(root);
+        while (!work.isEmpty()) {
+            Object next = work.pop();
+            if (next == DONE) {
+                BinOp b = open.pop();
+                visitor.op(b.op);
+                if (b.shared) {
+                    int local = locals.size();
+                    locals.put(b, local);
+                    visitor.store(local);
+                }
+            }
+            else if (next instanceof BinOp) {
+                BinOp b = (BinOp) next;
+                Integer local = b.shared ? locals.get(b) : null;
+                if (local != null)
+                    visitor.recall(local);
+                else {
+                    open.push(b);
+                    work.push(DONE);
+                    work.push(b.right);
+                    work.push(b.left);
+                }
+            }
+            else if (next instanceof Num)
+                visitor.num(((Num) next).val);
+            else if (next instanceof Var)
+                visitor.var(((Var) next).index);
+            else
+                visitor.other((Exp) next);
+        }
+    }
+
+    public static List<Instr> compile(Exp exp) {
+        ArrayList<Instr> instrs = new ArrayList<Instr>();
+        walk(exp, new Visitor() {
+            public void num(double val) { instrs.add(new Push(val)); }
+            public void var(int index) { instrs.add(new Load(index)); }
+            public void op(Op op) { instrs.add(new Calculate(op)); }
+            public void other(Exp exp) { instrs.addAll(exp.compile()); }
+            public void store(int local) { instrs.add(new Store(local)); }
+            public void recall(int local) { instrs.add(new Recall(local)); }
+        });
+        return instrs;
+    }
+
+    // assemble straight into a Program, without building a list of Instr objects
+    public static Program assemble(Exp exp) {
+        Program.Builder builder = new Program.Builder();
+        walk(exp, new Visitor() {
+            public void num(double val) { builder.push(val); }
+            public void var(int index) { builder.load(index); }
+            public void op(Op op) { builder.calculate(op); }
+            public void other(Exp exp) {
+                for (Instr i : exp.compile())
+                    i.assemble(builder);
+            }
+            public void store(int local) { builder.store(local); }
+            public void recall(int local) { builder.recall(local); }
+        });
+        return builder.build();
+    }
+
+    // vars may be null for an expression with no variables
+    public static double eval(Exp exp, double[] vars) {
+        double[][] stack = { new double[16] };
+        int[] sp = { 0 };
+        double[][] locals = { new double[4] };
+        walk(exp, new Visitor() {
+            private void push(double val) {
+                if (sp[0] == stack[0].length)
+                    stack[0] = Arrays.copyOf(stack[0], stack[0].length * 2);
+                stack[0][sp[0]++] = val;
+            }
+            public void num(double val) { push(val); }
+            public void var(int index) {
+                if (vars == null)
+                    throw new IllegalStateException("no value for x" + index);
+                push(vars[index]);
+            }
+            public void op(Op op) {
+                double val1 = stack[0][--sp[0]];
+                double val2 = stack[0][--sp[0]];
+                push(op.calculate(val2, val1));
+            }
+            public void other(Exp exp) { push(vars == null ? exp.eval() : exp.eval(vars)); }
+            public void store(int local) {
+                if (local == locals[0].length)
+                    locals[0] = Arrays.copyOf(locals[0], locals[0].length * 2);
+                locals[0][local] = stack[0][sp[0] - 1];
+            }
+            public void recall(int local) { push(locals[0][local]); }
+        });
+        return stack[0][0];
+    }
+}
+
+// a variable, whose value is given by position when the expression is evaluated
+class Var implements Exp {
+    protected int index;
+
+    public boolean equals(Object o) { return (o instanceof Var) && ((Var)o).index == this.index; }
+
+    public int hashCode() { return index; }
+
+    public String toString() { return "x" + index; }
+
+    public Var(int index) { this.index = index; }
+
+    public double eval() { throw new IllegalStateException("no value for " + this); }
+    public double eval(double[] vars) { return vars[index]; }
+
     public List<Instr> compile() {
-        List<Instr> ops = new LinkedList<Instr>();
-        ops.addAll(left.compile());
-        ops.addAll(right.compile());
-        ops.add(new Calculate(op));
-        return ops;
+        List<Instr> list = new LinkedList<Instr>();
+        list.add(new Load(index));
+        return list;
     }
 }
 
@@ -86,6 +380,7 @@ enum Op {
 // a type for arithmetic instructions
 interface Instr {
     void execute(Stack<Double> stack);
+    void assemble(Program.Builder builder);
 }
 
 class Push implements Instr {
@@ -93,12 +388,33 @@ class Push implements Instr {
 
     public boolean equals(Object o) { return (o instanceof Push) && ((Push)o).val == this.val; }
 
+    public int hashCode() { return Double.hashCode(val == 0.0 ? 0.0 : val); }
+
     public String toString() {
 		return "Push " + val;
     }
 
     public Push(double val) { this.val = val; }
     public void execute(Stack<Double> stack) { stack.push(val); }
+    public void assemble(Program.Builder builder) { builder.push(val); }
+}
+
+class Load implements Instr {
+    protected int index;
+
+    public boolean equals(Object o) { return (o instanceof Load) && ((Load)o).index == this.index; }
+
+    public int hashCode() { return index; }
+
+    public String toString() {
+		return "Load " + index;
+    }
+
+    public Load(int index) { this.index = index; }
+
+    // a Stack has no variables to load from, only a Program does
+    public void execute(Stack<Double> stack) { throw new IllegalStateException("no value for x" + index); }
+    public void assemble(Program.Builder builder) { builder.load(index); }
 }
 
 class Calculate implements Instr {
@@ -107,6 +423,8 @@ class Calculate implements Instr {
     public boolean equals(Object o) { return (o instanceof Calculate) && 
     						  ((Calculate)o).op.equals(this.op); }
 
+    public int hashCode() { return op.hashCode(); }
+
     public String toString() {
 		return "Calculate " + op;
     }
@@ -118,22 +436,534 @@ class Calculate implements Instr {
         double val2 = stack.pop();
         stack.push(op.calculate(val2, val1));
     }
+
+    public void assemble(Program.Builder builder) { builder.calculate(op); }
+}
+
+// copies the top of the stack into a local, leaving it on the stack
+class Store implements Instr {
+    protected int local;
+
+    public boolean equals(Object o) { return (o instanceof Store) && ((Store)o).local == this.local; }
+
+    public int hashCode() { return local; }
+
+    public String toString() {
+		return "Store " + local;
+    }
+
+    public Store(int local) { this.local = local; }
+
+    // a Stack has no locals, only a Program does
+    public void execute(Stack<Double> stack) { throw new IllegalStateException("no local " + local); }
+    public void assemble(Program.Builder builder) { builder.store(local); }
+}
+
+// pushes the value of a local that a Store set earlier
+class Recall implements Instr {
+    protected int local;
+
+    public boolean equals(Object o) { return (o instanceof Recall) && ((Recall)o).local == this.local; }
+
+    public int hashCode() { return local; }
+
+    public String toString() {
+		return "Recall " + local;
+    }
+
+    public Recall(int local) { this.local = local; }
+
+    public void execute(Stack<Double> stack) { throw new IllegalStateException("no local " + local); }
+    public void assemble(Program.Builder builder) { builder.recall(local); }
 }
 
+// The instructions are copied when an Instrs is made, so the Program cached for them
+// cannot go stale when the caller's list changes later.
 class Instrs {
-    protected List<Instr> instrs;
+    protected final List<Instr> instrs;
+    // instrs assembled into a Program the first time they are executed
+    private Program program;
 
-    public Instrs(List<Instr> instrs) { this.instrs = instrs; }
+    public Instrs(List<Instr> instrs) { this.instrs = Collections.unmodifiableList(new ArrayList<Instr>(instrs)); }
 
     public double execute() {
-        Stack<Double> stack = new Stack<Double>();
-        for (Instr i : instrs) {
-            i.execute(stack);
-        }
-        return stack.peek();
+        return execute(null);
     }  // Problem 1b
+
+    public double execute(double[] vars) {
+        if (program == null)
+            program = Program.assemble(instrs);
+        return program.execute(new double[program.maxDepth()], vars);
+    }
+}
+
+// A compact form of an instruction list: one opcode per instruction and an array of
+// the constants pushed, run on a double[] operand stack whose depth is worked out
+// when the program is assembled, so nothing is boxed and nothing is synchronized.
+// Locals live in the same array, in the slots above the deepest the operands reach.
+class Program {
+    // every other opcode is one more than the ordinal of the Op it calculates
+    protected static final byte PUSH = 0;
+    protected static final byte LOAD = 5;
+    protected static final byte STORE = 6;
+    protected static final byte RECALL = 7;
+
+    protected final byte[] code;
+    protected final double[] constants;
+    // the variable index of each Load, in order
+    protected final int[] loads;
+    // the local of each Store and Recall, in order
+    protected final int[] locals;
+    protected final int maxDepth, numLocals;
+
+    private Program(byte[] code, double[] constants, int[] loads, int[] locals, int maxDepth, int numLocals) {
+        this.code = code;
+        this.constants = constants;
+        this.loads = loads;
+        this.locals = locals;
+        this.maxDepth = maxDepth;
+        this.numLocals = numLocals;
+    }
+
+    // instructions that would pop an empty stack, or leave nothing to return, fail
+    // here with the EmptyStackException that running them on a Stack would throw
+    public static Program assemble(List<Instr> instrs) {
+        Builder builder = new Builder();
+        for (Instr i : instrs)
+            i.assemble(builder);
+        return builder.build();
+    }
+
+    // the size of the stack that execute needs, counting the locals above the operands
+    public int maxDepth() { return maxDepth + numLocals; }
+
+    public double execute() {
+        return execute(new double[maxDepth()], null);
+    }
+
+    // run on a caller supplied stack of at least maxDepth() elements, which can be reused between runs
+    public double execute(double[] stack, double[] vars) {
+        int sp = 0, next = 0, nextLoad = 0, nextLocal = 0;
+        for (byte opcode : code) {
+            switch (opcode) {
+                case PUSH: stack[sp++] = constants[next++]; break;
+                case LOAD:
+                    if (vars == null)
+                        throw new IllegalStateException("no value for x" + loads[nextLoad]);
+                    stack[sp++] = vars[loads[nextLoad++]];
+                    break;
+                case STORE: stack[maxDepth + locals[nextLocal++]] = stack[sp - 1]; break;
+                case RECALL: stack[sp++] = stack[maxDepth + locals[nextLocal++]]; break;
+                case 1: sp--; stack[sp - 1] = stack[sp - 1] + stack[sp]; break;
+                case 2: sp--; stack[sp - 1] = stack[sp - 1] - stack[sp]; break;
+                case 3: sp--; stack[sp - 1] = stack[sp - 1] * stack[sp]; break;
+                case 4: sp--; stack[sp - 1] = stack[sp - 1] / stack[sp]; break;
+            }
+        }
+        return stack[sp - 1];
+    }
+
+    // collects the opcodes and constants of a program while tracking the stack depth
+    static class Builder {
+        private byte[] code = new byte[16];
+        private double[] constants = new double[8];
+        private int[] loads = new int[8];
+        private int[] locals = new int[8];
+        private int length = 0, numConstants = 0, numLoads = 0, numLocalRefs = 0, numLocals = 0, depth = 0, maxDepth = 0;
+
+        public void push(double val) {
+            if (numConstants == constants.length)
+                constants = Arrays.copyOf(constants, constants.length * 2);
+            constants[numConstants++] = val;
+            emit(PUSH, 1);
+        }
+
+        public void load(int index) {
+            if (numLoads == loads.length)
+                loads = Arrays.copyOf(loads, loads.length * 2);
+            loads[numLoads++] = index;
+            emit(LOAD, 1);
+        }
+
+        public void store(int local) {
+            if (depth < 1)
+                throw new EmptyStackException();
+            local(local);
+            numLocals = Math.max(numLocals, local + 1);
+            emit(STORE, 0);
+        }
+
+        // a local must be stored before it is recalled
+        public void recall(int local) {
+            if (local >= numLocals)
+                throw new IllegalStateException("local " + local + " is recalled before it is stored");
+            local(local);
+            emit(RECALL, 1);
+        }
+
+        private void local(int local) {
+            if (numLocalRefs == locals.length)
+                locals = Arrays.copyOf(locals, locals.length * 2);
+            locals[numLocalRefs++] = local;
+        }
+
+        public void calculate(Op op) {
+            if (depth < 2)
+                throw new EmptyStackException();
+            emit((byte) (op.ordinal() + 1), -1);
+        }
+
+        private void emit(byte opcode, int change) {
+            if (length == code.length)
+                code = Arrays.copyOf(code, code.length * 2);
+            code[length++] = opcode;
+            depth += change;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        public Program build() {
+            if (depth < 1)
+                throw new EmptyStackException();
+            return new Program(Arrays.copyOf(code, length), Arrays.copyOf(constants, numConstants),
+                    Arrays.copyOf(loads, numLoads), Arrays.copyOf(locals, numLocalRefs), maxDepth, numLocals);
+        }
+    }
+}
+
+
+// an expression compiled to a JVM method; constants holds the values of its Push
+// instructions in order, so the same code can be run with different constants, and
+// vars holds the values of its variables
+interface CompiledExp {
+    double eval(double[] constants, double[] vars);
+
+    default double eval(double[] constants) { return eval(constants, null); }
+}
+
+// Compiles instruction lists into hidden classes whose eval method is straight-line
+// bytecode: each Push loads its constant from the array, each Load its variable from
+// the variables array, each Calculate becomes a single dadd, dsub, dmul or ddiv, and
+// each Store and Recall a dstore or dload of a local variable. The JIT can then inline the whole calculation, and
+// the arithmetic is the same IEEE double arithmetic that Op.calculate does.
+class ExpCompiler {
+    private static final String CLASS_NAME = "GeneratedExp";
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    public static CompiledExp compile(Exp exp) {
+        return compile(exp.compile());
+    }
+
+    public static CompiledExp compile(List<Instr> instrs) {
+        byte[] bytes = classBytes(instrs);
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (CompiledExp) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                .invoke();
+        } catch (Throwable t) {
+            throw new IllegalStateException("could not load compiled expression", t);
+        }
+    }
+
+    // the values of the Push instructions, in the order that compiled code expects them
+    public static double[] constants(List<Instr> instrs) {
+        return instrs.stream().filter(i -> i instanceof Push).mapToDouble(i -> ((Push) i).val).toArray();
+    }
+
+    public static double[] constants(Exp exp) {
+        return constants(exp.compile());
+    }
+
+    // a minimal class file with a constructor and eval([D[D)D
+    private static byte[] classBytes(List<Instr> instrs) {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int iface = pool.classRef("CompiledExp");
+        int objectInit = pool.methodRef(superClass, "<init>", "()V");
+        int initName = pool.utf8("<init>");
+        int initDesc = pool.utf8("()V");
+        int evalName = pool.utf8("eval");
+        int evalDesc = pool.utf8("([D[D)D");
+        int codeName = pool.utf8("Code");
+
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        int depth = 0, maxDepth = 0, constant = 0, numLocals = 0;
+        for (Instr instr : instrs) {
+            if (instr instanceof Push || instr instanceof Load) {
+                int index;
+                if (instr instanceof Push) {
+                    code.write(0x2b);                               // aload_1
+                    index = constant++;
+                }
+                else {
+                    code.write(0x2c);                               // aload_2
+                    index = ((Load) instr).index;
+                }
+                if (index <= 5)
+                    code.write(0x03 + index);                       // iconst_<n>
+                else if (index <= Byte.MAX_VALUE) {
+                    code.write(0x10);                               // bipush
+                    code.write(index);
+                }
+                else if (index <= Short.MAX_VALUE) {
+                    code.write(0x11);                               // sipush
+                    code.write(index >> 8);
+                    code.write(index);
+                }
+                else {
+                    int entry = pool.integer(index);
+                    code.write(0x13);                               // ldc_w
+                    code.write(entry >> 8);
+                    code.write(entry);
+                }
+                code.write(0x31);                                   // daload
+                depth++;
+            }
+            else if (instr instanceof Calculate) {
+                if (depth < 2)
+                    throw new IllegalArgumentException("stack underflow at " + instr);
+                switch (((Calculate) instr).op) {
+                    case PLUS: code.write(0x63); break;             // dadd
+                    case MINUS: code.write(0x67); break;            // dsub
+                    case TIMES: code.write(0x6b); break;            // dmul
+                    case DIVIDE: code.write(0x6f); break;           // ddiv
+                }
+                depth--;
+            }
+            else if (instr instanceof Store) {
+                if (depth < 1)
+                    throw new IllegalArgumentException("stack underflow at " + instr);
+                int local = ((Store) instr).local;
+                numLocals = Math.max(numLocals, local + 1);
+                code.write(0x5c);                                   // dup2
+                writeLocal(code, 0x39, local);                      // dstore
+            }
+            else if (instr instanceof Recall) {
+                int local = ((Recall) instr).local;
+                if (local >= numLocals)
+                    throw new IllegalArgumentException("local " + local + " is recalled before it is stored");
+                writeLocal(code, 0x18, local);                      // dload
+                depth++;
+            }
+            else
+                throw new IllegalArgumentException("cannot compile " + instr);
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        if (depth < 1)
+            throw new IllegalArgumentException("no result left on the stack");
+        // dreturn returns the top of the stack, as Instrs.execute peeks at it, whatever is left below
+        code.write(0xaf);                                           // dreturn
+        if (code.size() > MAX_CODE_LENGTH)
+            throw new IllegalArgumentException("expression is too large to compile to a single method");
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);
+            pool.write(out);
+            out.writeShort(0x0010 | 0x0020);                        // final, super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(iface);
+            out.writeShort(0);                                      // fields
+            out.writeShort(2);                                      // methods
+
+            out.writeShort(0x0001);                                 // public <init>()V
+            out.writeShort(initName);
+            out.writeShort(initDesc);
+            out.writeShort(1);
+            byte[] init = { 0x2a, (byte) 0xb7, (byte) (objectInit >> 8), (byte) objectInit, (byte) 0xb1 };
+            writeCode(out, codeName, 1, 1, init);
+
+            out.writeShort(0x0001);                                 // public eval([D[D)D
+            out.writeShort(evalName);
+            out.writeShort(evalDesc);
+            out.writeShort(1);
+            // each double takes two stack slots, plus two for the array and index of a load or
+            // the copy made by a dup2; locals 0 to 2 are this and the two arrays
+            writeCode(out, codeName, maxDepth * 2 + 2, 3 + 2 * numLocals, code.toByteArray());
+
+            out.writeShort(0);                                      // class attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // a dstore or dload of a local, which holds its double in the two slots from 3 + 2 * local
+    private static void writeLocal(ByteArrayOutputStream code, int opcode, int local) {
+        int slot = 3 + 2 * local;
+        if (slot > 0xffff)
+            throw new IllegalArgumentException("expression has too many shared subtrees to compile");
+        if (slot > 0xff) {
+            code.write(0xc4);                                       // wide
+            code.write(opcode);
+            code.write(slot >> 8);
+        }
+        else
+            code.write(opcode);
+        code.write(slot);
+    }
+
+    private static void writeCode(DataOutputStream out, int codeName, int maxStack, int maxLocals, byte[] code)
+        throws IOException {
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);                                          // exception table
+        out.writeShort(0);                                          // attributes
+    }
+
+    // the constant pool of the generated class, with entries shared where possible
+    private static class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<String, Integer>();
+        private int count = 1;
+
+        int utf8(String s) {
+            return entry("U" + s, () -> { out.writeByte(1); out.writeUTF(s); });
+        }
+
+        int classRef(String name) {
+            int utf = utf8(name);
+            return entry("C" + name, () -> { out.writeByte(7); out.writeShort(utf); });
+        }
+
+        int integer(int value) {
+            return entry("I" + value, () -> { out.writeByte(3); out.writeInt(value); });
+        }
+
+        int methodRef(int owner, String name, String desc) {
+            int n = utf8(name), d = utf8(desc);
+            int nameAndType = entry("N" + name + desc, () -> { out.writeByte(12); out.writeShort(n); out.writeShort(d); });
+            return entry("M" + owner + name + desc, () -> { out.writeByte(10); out.writeShort(owner); out.writeShort(nameAndType); });
+        }
+
+        private int entry(String key, IOAction write) {
+            Integer index = entries.get(key);
+            if (index == null) {
+                try {
+                    write.run();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                index = count++;
+                entries.put(key, index);
+            }
+            return index;
+        }
+
+        void write(DataOutputStream dest) throws IOException {
+            dest.writeShort(count);
+            bytes.writeTo(dest);
+        }
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+}
+
+// Evaluates one expression over many rows of variable bindings. columns[i][row] is the
+// value of Var i in that row. Rather than walk the tree once per row, the expression is
+// assembled once and each instruction is run over a whole block of rows at a time, with
+// one array of block values per stack slot. Large batches are split across a fork/join pool.
+class BatchEval {
+    // rows per block, small enough that the stack of blocks stays in cache
+    protected static final int BLOCK = 1024;
+
+    public static void evaluate(Exp exp, double[][] columns, double[] out) {
+        evaluate(exp, columns, out, ForkJoinPool.commonPool());
+    }
+
+    public static void evaluate(Exp exp, double[][] columns, double[] out, ForkJoinPool pool) {
+        evaluate(Postfix.assemble(exp), columns, out, pool);
+    }
+
+    public static void evaluate(Program program, double[][] columns, double[] out, ForkJoinPool pool) {
+        for (int index : program.loads) {
+            if (index >= columns.length || columns[index].length < out.length)
+                throw new IllegalArgumentException("no column of " + out.length + " values for x" + index);
+        }
+        pool.invoke(new BatchTask(program, columns, out, 0, out.length));
+    }
+
+    // run the program over rows [from, from + n), leaving the result in stack[0]
+    protected static void evaluateBlock(Program program, double[][] columns, double[][] stack, int from, int n) {
+        int sp = 0, next = 0, nextLoad = 0, nextLocal = 0;
+        for (byte opcode : program.code) {
+            if (opcode == Program.PUSH) {
+                Arrays.fill(stack[sp++], 0, n, program.constants[next++]);
+                continue;
+            }
+            if (opcode == Program.STORE) {
+                System.arraycopy(stack[sp - 1], 0, stack[program.maxDepth + program.locals[nextLocal++]], 0, n);
+                continue;
+            }
+            if (opcode == Program.RECALL) {
+                System.arraycopy(stack[program.maxDepth + program.locals[nextLocal++]], 0, stack[sp++], 0, n);
+                continue;
+            }
+            if (opcode == Program.LOAD) {
+                System.arraycopy(columns[program.loads[nextLoad++]], from, stack[sp++], 0, n);
+                continue;
+            }
+            sp--;
+            double[] a = stack[sp - 1], b = stack[sp];
+            switch (opcode) {
+                case 1: for (int i = 0; i < n; i++) a[i] = a[i] + b[i]; break;
+                case 2: for (int i = 0; i < n; i++) a[i] = a[i] - b[i]; break;
+                case 3: for (int i = 0; i < n; i++) a[i] = a[i] * b[i]; break;
+                case 4: for (int i = 0; i < n; i++) a[i] = a[i] / b[i]; break;
+            }
+        }
+        // the result is the top of the stack, as in Program.execute
+        if (sp != 1)
+            System.arraycopy(stack[sp - 1], 0, stack[0], 0, n);
+    }
 }
 
+class BatchTask extends RecursiveAction {
+    private final Program program;
+    private final double[][] columns;
+    private final double[] out;
+    private final int from, to;
+    protected static final int SEQUENTIAL_CUTOFF = 16 * BatchEval.BLOCK;
+
+    public BatchTask(Program program, double[][] columns, double[] out, int from, int to) {
+        this.program = program;
+        this.columns = columns;
+        this.out = out;
+        this.from = from;
+        this.to = to;
+    }
+
+    public void compute() {
+        if (to - from > SEQUENTIAL_CUTOFF) {
+            int mid = from + (to - from) / 2;
+            BatchTask left = new BatchTask(program, columns, out, from, mid);
+            BatchTask right = new BatchTask(program, columns, out, mid, to);
+            right.fork();
+            left.compute();
+            right.join();
+        }
+        else {
+            double[][] stack = new double[program.maxDepth()][Math.min(BatchEval.BLOCK, to - from)];
+            for (int start = from; start < to; start += BatchEval.BLOCK) {
+                int n = Math.min(BatchEval.BLOCK, to - start);
+                BatchEval.evaluateBlock(program, columns, stack, start, n);
+                System.arraycopy(stack[0], 0, out, start, n);
+            }
+        }
+    }
+}
 
 class CalcTest {
     public static void main(String[] args) {
@@ -153,10 +983,84 @@ class CalcTest {
 	is.add(new Calculate(Op.DIVIDE));
 	Instrs instrs = new Instrs(is);
 	assert(instrs.execute() == 2.0);
+	// later changes to the list are not seen by an Instrs already made from it
+	List<Instr> growing = new ArrayList<Instr>(is);
+	Instrs snapshot = new Instrs(growing);
+	assert(snapshot.execute() == 2.0);
+	growing.add(new Push(10.0));
+	growing.add(new Calculate(Op.TIMES));
+	assert(snapshot.execute() == 2.0);
+	assert(new Instrs(growing).execute() == 20.0);
+	assert(Program.assemble(is).maxDepth() == 2);
 
 	// a test for Problem 1c
 	assert(exp.compile().equals(is));
 
+	// compiled expressions match eval bit for bit, and can be rerun with new constants
+	CompiledExp compiled = ExpCompiler.compile(exp);
+	assert(Double.doubleToRawLongBits(compiled.eval(ExpCompiler.constants(exp))) ==
+	       Double.doubleToRawLongBits(exp.eval()));
+	assert(compiled.eval(new double[] { 1.0, 2.0, 0.0 }) == Double.POSITIVE_INFINITY);
+
+	// constant subtrees fold away, and only bit-identical identities are removed
+	assert(Optimizer.optimize(exp).equals(new Num(2.0)));
+	Exp x = new Var(0);
+	Exp shared = Optimizer.optimize(new BinOp(new BinOp(new BinOp(x, Op.TIMES, new Num(1.0)), Op.PLUS, new Num(-0.0)),
+	                                          Op.DIVIDE, new BinOp(x, Op.PLUS, new Num(0.0))));
+	assert(shared.equals(new BinOp(x, Op.DIVIDE, new BinOp(x, Op.PLUS, new Num(0.0)))));
+	Exp square = Optimizer.optimize(new BinOp(new BinOp(x, Op.MINUS, new Num(1.0)), Op.TIMES,
+	                                          new BinOp(new Var(0), Op.MINUS, new Num(1.0))));
+	assert(((BinOp) square).left == ((BinOp) square).right);
+	// the shared x-1 is computed once, stored, and recalled, while the tree optimized is left alone
+	Exp unshared = new BinOp(new BinOp(x, Op.MINUS, new Num(1.0)), Op.TIMES, new BinOp(new Var(0), Op.MINUS, new Num(1.0)));
+	List<Instr> unsharedInstrs = unshared.compile();
+	assert(unsharedInstrs.size() == 7);
+	assert(Optimizer.optimize(unshared).compile().size() == 6);
+	assert(unshared.compile().equals(unsharedInstrs));
+	assert(new Instrs(unshared.compile()).execute(new double[] { 4.0 }) == 9.0);
+	assert(square.eval(new double[] { 4.0 }) == 9.0);
+	assert(new Instrs(square.compile()).execute(new double[] { 4.0 }) == 9.0);
+	assert(ExpCompiler.compile(square).eval(ExpCompiler.constants(square), new double[] { 4.0 }) == 9.0);
+	double[] squares = new double[3];
+	BatchEval.evaluate(square, new double[][] { { 0.0, 2.0, 4.0 } }, squares);
+	assert(Arrays.equals(squares, new double[] { 1.0, 1.0, 9.0 }));
+	// simplified without recursion, so a chain far deeper than the call stack is fine
+	Exp deepSum = x;
+	for (int i = 0; i < 100000; i++)
+	    deepSum = new BinOp(deepSum, Op.PLUS, new Var(0));
+	assert(Optimizer.optimize(deepSum).eval(new double[] { 1.0 }) == 100001.0);
+	// each level adds two equal copies of the level below, so only sharing keeps this linear
+	Exp doubled = x;
+	for (int i = 0; i < 16; i++)
+	    doubled = new BinOp(doubled, Op.PLUS, doubled);
+	Exp doubledShared = Optimizer.optimize(doubled);
+	assert(((BinOp) doubledShared).aboveShared);
+	assert(doubledShared.eval(new double[] { 1.0 }) == 65536.0);
+	assert(doubledShared.compile().size() == 48);
+
+	// a left-leaning chain of a million BinOps compiles and evaluates without recursing
+	Exp chain = new Num(0.0);
+	for (int i = 0; i < 1000000; i++)
+	    chain = new BinOp(chain, Op.PLUS, new Num(1.0));
+	assert(chain.eval() == 1000000.0);
+	List<Instr> chainInstrs = chain.compile();
+	assert(chainInstrs.size() == 2000001);
+	assert(new Instrs(chainInstrs).execute() == 1000000.0);
+	assert(Postfix.assemble(chain).execute() == 1000000.0);
+	Exp sameChain = new Num(0.0);
+	for (int i = 0; i < 1000000; i++)
+	    sameChain = new BinOp(sameChain, Op.PLUS, new Num(1.0));
+	assert(chain.hashCode() == sameChain.hashCode());
+
+	// variables, bound per row in a batch
+	Exp poly = new BinOp(new BinOp(new Var(0), Op.TIMES, new Var(0)), Op.MINUS, new Var(1));
+	double[][] columns = { { 1.0, 2.0, 3.0 }, { 0.5, 1.0, 1.5 } };
+	double[] results = new double[3];
+	BatchEval.evaluate(poly, columns, results);
+	assert(Arrays.equals(results, new double[] { 0.5, 3.0, 7.5 }));
+	assert(new Instrs(poly.compile()).execute(new double[] { 3.0, 1.5 }) == 7.5);
+	assert(ExpCompiler.compile(poly).eval(new double[0], new double[] { 3.0, 1.5 }) == 7.5);
+
         // Problem 2
         StringSet s = new ListStringSet();
         assert(s.size() == 0);
@@ -185,24 +1089,222 @@ class CalcTest {
         assert(t.contains("a"));
         t.add("y");
         assert(t.contains("y"));
+
+        AVLStringSet u = new AVLStringSet();
+        assert(u.size() == 0);
+        assert(!u.contains(""));
+        u.add("x");
+        u.add("x");
+        assert(u.contains("x"));
+        assert(u.size() == 1);
+        u.add("a");
+        u.add("y");
+        assert(u.size() == 3);
+        assert(u.first().equals("a") && u.last().equals("y"));
+        assert(u.ceiling("b").equals("x") && u.floor("b").equals("a"));
+        Iterator<String> range = u.range("b", "y");
+        assert(range.next().equals("x") && !range.hasNext());
+
+        Set<String> v = new AVLSet<String>((s1, s2) -> s2.compareTo(s1));
+        for (int i = 0; i < 100000; i++)
+            v.add("" + i);
+        assert(v.size() == 100000);
+        assert(v.contains("99999") && !v.contains("100000"));
+        assert(((AVLSet<String>) v).first().equals("99999"));
+
+        HashStringSet h = new HashStringSet();
+        assert(h.size() == 0);
+        assert(!h.contains(""));
+        for (int i = 0; i < 1000; i++)
+            h.add("" + i);
+        h.add("5");
+        assert(h.size() == 1000);
+        assert(h.contains("999") && !h.contains("1000"));
+        String copy = new String("42");
+        assert(h.intern(copy) != copy && h.intern(copy).equals(copy));
+
+        OrderedHashStringSet o = new OrderedHashStringSet();
+        o.add("y");
+        o.add("a");
+        o.add("y");
+        assert(o.size() == 2 && o.contains("a") && o.first().equals("a"));
+
+        ListSet<String> evens = ListSet.fromArray(new String[] { "4", "0", "2", "2", "6" }, String::compareTo);
+        ListSet<String> small = ListSet.fromSorted(new String[] { "1", "2", "3" }, String::compareTo);
+        assert(evens.size() == 4 && evens.contains("4") && !evens.contains("1"));
+        assert(Arrays.equals(evens.union(small).toArray(new String[0]), new String[] { "0", "1", "2", "3", "4", "6" }));
+        assert(Arrays.equals(evens.intersection(small).toArray(new String[0]), new String[] { "2" }));
+        assert(Arrays.equals(evens.difference(small).toArray(new String[0]), new String[] { "0", "4", "6" }));
+        ListStringSet words = ListStringSet.fromArray(new String[] { "c", "a", "b", "a" });
+        ListStringSet moreWords = ListStringSet.fromSorted(new String[] { "b", "d" });
+        assert(Arrays.equals(words.union(moreWords).toArray(), new String[] { "a", "b", "c", "d" }));
+        assert(Arrays.equals(words.intersection(moreWords).toArray(), new String[] { "b" }));
+        assert(Arrays.equals(words.difference(moreWords).toArray(), new String[] { "a", "c" }));
+        AVLStringSet tree = AVLStringSet.fromArray(new String[] { "c", "a", "b", "a" });
+        AVLStringSet moreTree = AVLStringSet.fromSorted(new String[] { "b", "d" });
+        assert(Arrays.equals(tree.union(moreTree).toArray(), new String[] { "a", "b", "c", "d" }));
+        assert(Arrays.equals(tree.intersection(moreTree).toArray(), new String[] { "b" }));
+        assert(tree.difference(moreTree).size() == 2 && tree.difference(moreTree).last().equals("c"));
+        AVLSet<String> bulk = AVLSet.fromArray(new String[] { "b", "a", "c", "a" }, String::compareTo);
+        assert(bulk.size() == 3 && bulk.first().equals("a") && bulk.root.height == 2);
+
+        VersionedSet<String> versioned = new VersionedSet<String>(String::compareTo);
+        versioned.add("b");
+        PersistentSet<String> before = versioned.snapshot();
+        versioned.addAll(Arrays.asList("a", "c", "b"));
+        assert(versioned.size() == 3 && versioned.contains("c"));
+        assert(before.size() == 1 && !before.contains("c"));
+        assert(versioned.snapshot().plus("a") == versioned.snapshot());
+
+        // every set can be streamed, in order if it is sorted
+        assert(u.stream().collect(Collectors.joining()).equals("axy"));
+        assert(t.stream().collect(Collectors.joining()).equals("yxa"));
+        assert(s.stream().collect(Collectors.joining()).equals("axy"));
+        assert(v.parallelStream().mapToLong(Long::parseLong).sum() == 99999L * 100000 / 2);
+        assert(v.parallelStream().collect(Collectors.toList()).equals(v.stream().collect(Collectors.toList())));
+        assert(h.parallelStream().count() == 1000);
+        assert(versioned.stream().collect(Collectors.joining()).equals("abc"));
+
+        IntHashSet ints = new IntHashSet();
+        for (int i = -500; i < 500; i++)
+            ints.add(i * 7);
+        ints.add(Integer.MIN_VALUE);
+        assert(ints.size() == 1001);
+        assert(ints.contains(-3500) && !ints.contains(1) && ints.contains(Integer.MIN_VALUE));
     }
 }
 
 
+// A stress test for ConcurrentSkipSet. Writers add the even numbers below KEYS in
+// overlapping, shuffled orders and publish how far through their list they are; readers
+// check that every add which finished before a contains started is seen by it, that a
+// key once seen stays seen, and that odd numbers, which are never added, are never seen.
+// For a set that only grows, these are what linearizability of add and contains means.
+class ConcurrentSetTest {
+    static final int KEYS = 200000;
+    static final int WRITERS = 4;
+    static final int READERS = 4;
+
+    public static void main(String[] args) throws InterruptedException {
+        ConcurrentSkipSet<Integer> set = new ConcurrentSkipSet<Integer>(Integer::compare);
+        int[][] orders = new int[WRITERS][];
+        AtomicIntegerArray progress = new AtomicIntegerArray(WRITERS);
+        for (int w = 0; w < WRITERS; w++) {
+            List<Integer> keys = new ArrayList<Integer>();
+            // each writer adds three quarters of the keys, so every key is raced by several writers
+            for (int k = 0; k < KEYS; k += 2)
+                if ((k / 2) % WRITERS != w)
+                    keys.add(k);
+            Collections.shuffle(keys, new Random(w));
+            orders[w] = keys.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        AtomicBoolean done = new AtomicBoolean(false);
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int w = 0; w < WRITERS; w++) {
+            int writer = w;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < orders[writer].length; i++) {
+                    set.add(orders[writer][i]);
+                    progress.set(writer, i + 1);
+                }
+            }));
+        }
+        for (int r = 0; r < READERS; r++) {
+            int reader = r;
+            threads.add(new Thread(() -> {
+                try {
+                    Random random = new Random(100 + reader);
+                    boolean[] seen = new boolean[KEYS];
+                    while (!done.get()) {
+                        int writer = random.nextInt(WRITERS);
+                        int finished = progress.get(writer);
+                        if (finished > 0) {
+                            int key = orders[writer][random.nextInt(finished)];
+                            if (!set.contains(key))
+                                throw new AssertionError("add of " + key + " finished but contains missed it");
+                        }
+                        int key = random.nextInt(KEYS);
+                        boolean present = set.contains(key);
+                        if (present && key % 2 == 1)
+                            throw new AssertionError("found " + key + " which was never added");
+                        if (seen[key] && !present)
+                            throw new AssertionError(key + " was seen and then lost");
+                        seen[key] |= present;
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }));
+        }
+        for (Thread t : threads)
+            t.start();
+        for (int w = 0; w < WRITERS; w++)
+            threads.get(w).join();
+        done.set(true);
+        for (Thread t : threads)
+            t.join();
+
+        assert(failures.isEmpty()) : failures.get(0);
+        assert(set.size() == KEYS / 2);
+        for (int k = 0; k < KEYS; k++)
+            assert(set.contains(k) == (k % 2 == 0));
+    }
+}
+
 // PROBLEM 2
 
 // the type for a set of strings
-interface StringSet {
+interface StringSet extends Iterable<String> {
      int size();
      boolean contains(String s);
      void add(String s);
+
+     default Stream<String> stream() { return StreamSupport.stream(spliterator(), false); }
+     default Stream<String> parallelStream() { return StreamSupport.stream(spliterator(), true); }
 }
 
 // an implementation of StringSet using a linked list
 class ListStringSet implements StringSet {
     protected SNode head;
 
-    public ListStringSet() { head = new SEmpty(); }
+    public ListStringSet() { head = SEmpty.INSTANCE; }
+
+    // build the list from the back in O(n) from strings already sorted with no duplicates
+    public static ListStringSet fromSorted(String[] sorted) {
+        ListStringSet set = new ListStringSet();
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            SElement node = new SElement(sorted[i]);
+            node.next = set.head;
+            set.head = node;
+        }
+        return set;
+    }
+
+    public static ListStringSet fromArray(String[] items) {
+        return fromSorted(SortedSets.sortDistinct(items, String::compareTo));
+    }
+
+    // the strings in order
+    public String[] toArray() {
+        List<String> elems = new ArrayList<String>();
+        for (SNode node = head; !node.isEmpty(); node = node.getNext())
+            elems.add(((SElement) node).elem);
+        return elems.toArray(new String[0]);
+    }
+
+    public ListStringSet union(ListStringSet other) {
+        return fromSorted(SortedSets.union(toArray(), other.toArray(), String::compareTo));
+    }
+
+    public ListStringSet intersection(ListStringSet other) {
+        return fromSorted(SortedSets.intersection(toArray(), other.toArray(), String::compareTo));
+    }
+
+    public ListStringSet difference(ListStringSet other) {
+        return fromSorted(SortedSets.difference(toArray(), other.toArray(), String::compareTo));
+    }
 
     public int size() {
         int size = 0;
@@ -230,6 +1332,26 @@ class ListStringSet implements StringSet {
     public void add(String s) {
         head = head.add(s);
     }
+
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private SNode node = head;
+            public boolean hasNext() { return !node.isEmpty(); }
+            public String next() {
+                if (node.isEmpty())
+                    throw new NoSuchElementException();
+                String elem = ((SElement) node).elem;
+                node = node.getNext();
+                return elem;
+            }
+        };
+    }
+
+    // a list can only be split by copying a batch of its elements out into an array
+    public Spliterator<String> spliterator() {
+        return new ComparatorSpliterator<String>(Spliterators.spliterator(iterator(), size(),
+                    Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), null);
+    }
 }
 
 // a type for the nodes of the linked list
@@ -242,8 +1364,11 @@ interface SNode {
 
 // represents an empty node (which ends a linked list)
 class SEmpty implements SNode {
+    // every list ends in this one shared node
+    protected static final SEmpty INSTANCE = new SEmpty();
+
     public boolean isEmpty() { return true; }
-    public SNode getNext() { return new SEmpty(); }
+    public SNode getNext() { return this; }
     public int compareTo(String s) { return -1; }
     public SNode add(String s) { return new SElement(s); }
 }
@@ -253,7 +1378,7 @@ class SElement implements SNode {
     protected String elem;
     protected SNode next;
 
-    public SElement(String s) { elem = s; next = new SEmpty(); }
+    public SElement(String s) { elem = s; next = SEmpty.INSTANCE; }
 
     public boolean isEmpty() { return false; }
     public SNode getNext() { return next; }
@@ -272,10 +1397,13 @@ class SElement implements SNode {
     }
 }
 
-interface Set<T> {
+interface Set<T> extends Iterable<T> {
     int size();
     boolean contains(T t);
     void add(T t);
+
+    default Stream<T> stream() { return StreamSupport.stream(spliterator(), false); }
+    default Stream<T> parallelStream() { return StreamSupport.stream(spliterator(), true); }
 }
 
 class ListSet<T> implements Set<T> {
@@ -283,7 +1411,7 @@ class ListSet<T> implements Set<T> {
     protected Comparator<T> comparator;
 
     public ListSet(Comparator<T> comparator) {
-        head = new Empty<T>();
+        head = Empty.instance();
         this.comparator = comparator;
     }
 
@@ -313,6 +1441,65 @@ class ListSet<T> implements Set<T> {
     public void add(T t) {
         head = head.add(t, comparator);
     }
+
+    // build a set from elements already sorted by comparator with no duplicates, in O(n)
+    public static <T> ListSet<T> fromSorted(T[] sorted, Comparator<T> comparator) {
+        ListSet<T> set = new ListSet<T>(comparator);
+        // link the list up from the back, so each node is created once with its final next
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            Element<T> node = new Element<T>(sorted[i]);
+            node.next = set.head;
+            set.head = node;
+        }
+        return set;
+    }
+
+    public static <T> ListSet<T> fromArray(T[] items, Comparator<T> comparator) {
+        return fromSorted(SortedSets.sortDistinct(items, comparator), comparator);
+    }
+
+    // the elements in order
+    public T[] toArray(T[] a) {
+        List<T> elems = new ArrayList<T>();
+        for (Node<T> node = head; !node.isEmpty(); node = node.getNext())
+            elems.add(((Element<T>) node).elem);
+        return elems.toArray(a);
+    }
+
+    public ListSet<T> union(ListSet<T> other) {
+        return fromSorted(SortedSets.union(toArray(empty()), other.toArray(empty()), comparator), comparator);
+    }
+
+    public ListSet<T> intersection(ListSet<T> other) {
+        return fromSorted(SortedSets.intersection(toArray(empty()), other.toArray(empty()), comparator), comparator);
+    }
+
+    public ListSet<T> difference(ListSet<T> other) {
+        return fromSorted(SortedSets.difference(toArray(empty()), other.toArray(empty()), comparator), comparator);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T[] empty() { return (T[]) new Object[0]; }
+
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private Node<T> node = head;
+            public boolean hasNext() { return !node.isEmpty(); }
+            public T next() {
+                if (node.isEmpty())
+                    throw new NoSuchElementException();
+                T elem = ((Element<T>) node).elem;
+                node = node.getNext();
+                return elem;
+            }
+        };
+    }
+
+    // a list can only be split by copying a batch of its elements out into an array
+    public Spliterator<T> spliterator() {
+        return new ComparatorSpliterator<T>(Spliterators.spliterator(iterator(), size(),
+                    Spliterator.ORDERED | Spliterator.DISTINCT), comparator);
+    }
 }
 
 interface Node<T> {
@@ -323,8 +1510,14 @@ interface Node<T> {
 }
 
 class Empty<T> implements Node<T> {
+    // every list ends in this one shared node, which holds no T so can be shared by all of them
+    private static final Empty<Object> INSTANCE = new Empty<Object>();
+
+    @SuppressWarnings("unchecked")
+    protected static <T> Empty<T> instance() { return (Empty<T>) INSTANCE; }
+
     public boolean isEmpty() { return true; }
-    public Node<T> getNext() { return new Empty<T>(); }
+    public Node<T> getNext() { return this; }
     public int compareToWithComparator(T t, Comparator<T> comparator) { return -1; }
     public Node<T> add(T t, Comparator<T> comparator) { return new Element<T>(t); }
 }
@@ -333,7 +1526,7 @@ class Element<T> implements Node<T> {
     protected T elem;
     protected Node<T> next;
 
-    public Element(T t) { elem = t; next = new Empty<T>(); }
+    public Element(T t) { elem = t; next = Empty.instance(); }
 
     public boolean isEmpty() { return false; }
     public Node<T> getNext() { return next; }
@@ -353,3 +1546,1087 @@ class Element<T> implements Node<T> {
         return this;
     }
 }
+
+// an implementation of Set using an AVL tree, ordered by comparator, so add and
+// contains take O(log n) time and the tree is never deeper than about 1.44 log n
+class AVLSet<T> implements Set<T> {
+    protected AVLNode<T> root;
+    protected Comparator<T> comparator;
+    protected int size;
+
+    public AVLSet(Comparator<T> comparator) {
+        this.comparator = comparator;
+    }
+
+    // build a perfectly balanced set from elements already sorted by comparator with no duplicates, in O(n)
+    public static <T> AVLSet<T> fromSorted(T[] sorted, Comparator<T> comparator) {
+        AVLSet<T> set = new AVLSet<T>(comparator);
+        set.root = build(sorted, 0, sorted.length);
+        set.size = sorted.length;
+        return set;
+    }
+
+    public static <T> AVLSet<T> fromArray(T[] items, Comparator<T> comparator) {
+        return fromSorted(SortedSets.sortDistinct(items, comparator), comparator);
+    }
+
+    private static <T> AVLNode<T> build(T[] sorted, int from, int to) {
+        if (from >= to)
+            return null;
+        int mid = (from + to) >>> 1;
+        AVLNode<T> node = new AVLNode<T>(sorted[mid]);
+        node.left = build(sorted, from, mid);
+        node.right = build(sorted, mid + 1, to);
+        node.update();
+        return node;
+    }
+
+    // the elements in order, in a if it is big enough
+    public T[] toArray(T[] a) {
+        T[] elems = a.length >= size ? a : Arrays.copyOf(a, size);
+        int i = 0;
+        for (T t : this)
+            elems[i++] = t;
+        return elems;
+    }
+
+    public AVLSet<T> union(AVLSet<T> other) {
+        return fromSorted(SortedSets.union(toArray(empty()), other.toArray(empty()), comparator), comparator);
+    }
+
+    public AVLSet<T> intersection(AVLSet<T> other) {
+        return fromSorted(SortedSets.intersection(toArray(empty()), other.toArray(empty()), comparator), comparator);
+    }
+
+    public AVLSet<T> difference(AVLSet<T> other) {
+        return fromSorted(SortedSets.difference(toArray(empty()), other.toArray(empty()), comparator), comparator);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T[] empty() { return (T[]) new Object[0]; }
+
+    public int size() { return size; }
+
+    public boolean contains(T t) {
+        AVLNode<T> node = root;
+        while (node != null) {
+            int result = comparator.compare(node.elem, t);
+            if (result == 0)
+                return true;
+            node = result > 0 ? node.left : node.right;
+        }
+        return false;
+    }
+
+    public void add(T t) {
+        root = insert(root, t);
+    }
+
+    private AVLNode<T> insert(AVLNode<T> node, T t) {
+        if (node == null) {
+            size++;
+            return new AVLNode<T>(t);
+        }
+        int result = comparator.compare(node.elem, t);
+        if (result > 0)
+            node.left = insert(node.left, t);
+        else if (result < 0)
+            node.right = insert(node.right, t);
+        else
+            return node;
+        return node.rebalance();
+    }
+
+    // the smallest element, or null if the set is empty
+    public T first() {
+        AVLNode<T> node = root;
+        if (node == null)
+            return null;
+        while (node.left != null)
+            node = node.left;
+        return node.elem;
+    }
+
+    // the largest element, or null if the set is empty
+    public T last() {
+        AVLNode<T> node = root;
+        if (node == null)
+            return null;
+        while (node.right != null)
+            node = node.right;
+        return node.elem;
+    }
+
+    // the smallest element at least t, or null if there is none
+    public T ceiling(T t) {
+        AVLNode<T> node = root;
+        T best = null;
+        while (node != null) {
+            int result = comparator.compare(node.elem, t);
+            if (result == 0)
+                return node.elem;
+            if (result > 0) {
+                best = node.elem;
+                node = node.left;
+            }
+            else
+                node = node.right;
+        }
+        return best;
+    }
+
+    // the largest element at most t, or null if there is none
+    public T floor(T t) {
+        AVLNode<T> node = root;
+        T best = null;
+        while (node != null) {
+            int result = comparator.compare(node.elem, t);
+            if (result == 0)
+                return node.elem;
+            if (result < 0) {
+                best = node.elem;
+                node = node.right;
+            }
+            else
+                node = node.left;
+        }
+        return best;
+    }
+
+    public Iterator<T> iterator() {
+        return new AVLIterator<T>(root, null, null, comparator);
+    }
+
+    public Spliterator<T> spliterator() {
+        return new TreeSpliterator<AVLNode<T>, T>(AVL_SHAPE(), root, size, 0, comparator);
+    }
+
+    private static final TreeShape<AVLNode<Object>, Object> AVL_SHAPE = new TreeShape<AVLNode<Object>, Object>() {
+        public AVLNode<Object> left(AVLNode<Object> node) { return node.left; }
+        public AVLNode<Object> right(AVLNode<Object> node) { return node.right; }
+        public Object elem(AVLNode<Object> node) { return node.elem; }
+    };
+
+    @SuppressWarnings("unchecked")
+    private static <T> TreeShape<AVLNode<T>, T> AVL_SHAPE() { return (TreeShape<AVLNode<T>, T>) (Object) AVL_SHAPE; }
+
+    // the elements e with from <= e < to, in order
+    public Iterator<T> range(T from, T to) {
+        return new AVLIterator<T>(root, from, to, comparator);
+    }
+}
+
+class AVLNode<T> {
+    protected T elem;
+    protected AVLNode<T> left, right;
+    protected int height;
+
+    public AVLNode(T t) { elem = t; height = 1; }
+
+    protected static <T> int height(AVLNode<T> node) { return node == null ? 0 : node.height; }
+
+    protected void update() { height = Math.max(height(left), height(right)) + 1; }
+
+    protected AVLNode<T> rotateRight() {
+        AVLNode<T> top = left;
+        left = top.right;
+        top.right = this;
+        update();
+        top.update();
+        return top;
+    }
+
+    protected AVLNode<T> rotateLeft() {
+        AVLNode<T> top = right;
+        right = top.left;
+        top.left = this;
+        update();
+        top.update();
+        return top;
+    }
+
+    // restore the AVL invariant at this node after one of its subtrees grew by one
+    protected AVLNode<T> rebalance() {
+        update();
+        int balance = height(left) - height(right);
+        if (balance > 1) {
+            if (height(left.left) < height(left.right))
+                left = left.rotateLeft();
+            return rotateRight();
+        }
+        if (balance < -1) {
+            if (height(right.right) < height(right.left))
+                right = right.rotateRight();
+            return rotateLeft();
+        }
+        return this;
+    }
+}
+
+// an in-order walk of the elements between from (inclusive) and to (exclusive),
+// either of which may be null for no bound, using a stack of the nodes still to visit
+class AVLIterator<T> implements Iterator<T> {
+    private final ArrayDeque<AVLNode<T>> stack = new ArrayDeque<AVLNode<T>>();
+    private final T to;
+    private final Comparator<T> comparator;
+
+    public AVLIterator(AVLNode<T> root, T from, T to, Comparator<T> comparator) {
+        this.to = to;
+        this.comparator = comparator;
+        // push the path down to the first element at least from
+        AVLNode<T> node = root;
+        while (node != null) {
+            if (from != null && comparator.compare(node.elem, from) < 0)
+                node = node.right;
+            else {
+                stack.push(node);
+                node = node.left;
+            }
+        }
+    }
+
+    public boolean hasNext() {
+        return !stack.isEmpty() && (to == null || comparator.compare(stack.peek().elem, to) < 0);
+    }
+
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        AVLNode<T> node = stack.pop();
+        for (AVLNode<T> n = node.right; n != null; n = n.left)
+            stack.push(n);
+        return node.elem;
+    }
+}
+
+// an implementation of StringSet using an AVL tree in String order
+class AVLStringSet implements StringSet {
+    protected AVLSet<String> set = new AVLSet<String>(String::compareTo);
+
+    private static AVLStringSet of(AVLSet<String> tree) {
+        AVLStringSet set = new AVLStringSet();
+        set.set = tree;
+        return set;
+    }
+
+    public static AVLStringSet fromSorted(String[] sorted) { return of(AVLSet.fromSorted(sorted, String::compareTo)); }
+    public static AVLStringSet fromArray(String[] items) { return of(AVLSet.fromArray(items, String::compareTo)); }
+
+    public String[] toArray() { return set.toArray(new String[0]); }
+
+    public AVLStringSet union(AVLStringSet other) { return of(set.union(other.set)); }
+    public AVLStringSet intersection(AVLStringSet other) { return of(set.intersection(other.set)); }
+    public AVLStringSet difference(AVLStringSet other) { return of(set.difference(other.set)); }
+
+    public int size() { return set.size(); }
+    public boolean contains(String s) { return set.contains(s); }
+    public void add(String s) { set.add(s); }
+
+    public String first() { return set.first(); }
+    public String last() { return set.last(); }
+    public String ceiling(String s) { return set.ceiling(s); }
+    public String floor(String s) { return set.floor(s); }
+    public Iterator<String> iterator() { return set.iterator(); }
+    public Spliterator<String> spliterator() { return set.spliterator(); }
+    public Iterator<String> range(String from, String to) { return set.range(from, to); }
+}
+
+// A lock-free skip list implementation of Set, ordered by comparator, that any number
+// of threads can add to and query at once. Sets never remove elements, so a node is
+// never unlinked once it is reachable and no marked references are needed: add links a
+// new node in at the bottom level with a compareAndSet, which is where it becomes a
+// member of the set, and then links it into the higher levels, which only speed up
+// searches. contains only reads, so it never blocks or retries and is wait-free.
+class ConcurrentSkipSet<T> implements Set<T> {
+    protected static final int MAX_LEVEL = 32;
+
+    // a sentinel that sorts before every element
+    protected final SkipNode<T> head = new SkipNode<T>(null, MAX_LEVEL);
+    protected Comparator<T> comparator;
+    private final LongAdder count = new LongAdder();
+
+    public ConcurrentSkipSet(Comparator<T> comparator) {
+        this.comparator = comparator;
+    }
+
+    // exact when no adds are in flight, otherwise somewhere between the sizes before and after them
+    public int size() { return (int) count.sum(); }
+
+    public boolean contains(T t) {
+        SkipNode<T> pred = head;
+        SkipNode<T> curr = null;
+        for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+            curr = pred.next(level);
+            while (curr != null && comparator.compare(curr.elem, t) < 0) {
+                pred = curr;
+                curr = pred.next(level);
+            }
+        }
+        return curr != null && comparator.compare(curr.elem, t) == 0;
+    }
+
+    public void add(T t) {
+        SkipNode<T>[] preds = newArray();
+        SkipNode<T>[] succs = newArray();
+        SkipNode<T> node = null;
+        while (true) {
+            if (find(t, preds, succs))
+                return;
+            if (node == null)
+                node = new SkipNode<T>(t, randomLevel());
+            node.setNext(0, succs[0]);
+            if (preds[0].casNext(0, succs[0], node))
+                break;
+        }
+        count.increment();
+        for (int level = 1; level < node.height(); level++) {
+            while (true) {
+                node.setNext(level, succs[level]);
+                if (preds[level].casNext(level, succs[level], node))
+                    break;
+                find(t, preds, succs);
+            }
+        }
+    }
+
+    // fill in the last node before t and the first node at or after it on each level,
+    // and return whether t is already at the bottom level
+    private boolean find(T t, SkipNode<T>[] preds, SkipNode<T>[] succs) {
+        SkipNode<T> pred = head;
+        for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+            SkipNode<T> curr = pred.next(level);
+            while (curr != null && comparator.compare(curr.elem, t) < 0) {
+                pred = curr;
+                curr = pred.next(level);
+            }
+            preds[level] = pred;
+            succs[level] = curr;
+        }
+        return succs[0] != null && comparator.compare(succs[0].elem, t) == 0;
+    }
+
+    // a weakly consistent walk along the bottom level, which sees every element added
+    // before it started and may or may not see ones added while it runs
+    public Iterator<T> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    public Spliterator<T> spliterator() {
+        return new SkipSpliterator(head, null, size());
+    }
+
+    // The elements from first (inclusive, unless it is the head) up to fence (exclusive,
+    // or to the end if it is null). It splits at the first node linked from first on the
+    // highest level that stops before the fence, so the tall nodes of the upper levels
+    // cut the list into roughly even halves without walking it.
+    private class SkipSpliterator implements Spliterator<T> {
+        private SkipNode<T> first;
+        private final SkipNode<T> fence;
+        private long estimate;
+
+        SkipSpliterator(SkipNode<T> first, SkipNode<T> fence, long estimate) {
+            this.first = first;
+            this.fence = fence;
+            this.estimate = estimate;
+        }
+
+        public Spliterator<T> trySplit() {
+            if (first == null)
+                return null;
+            for (int level = first.height() - 1; level > 0; level--) {
+                SkipNode<T> mid = first.next(level);
+                if (mid != null && mid != fence && (fence == null || comparator.compare(mid.elem, fence.elem) < 0)) {
+                    SkipSpliterator prefix = new SkipSpliterator(first, mid, estimate >>>= 1);
+                    first = mid;
+                    return prefix;
+                }
+            }
+            return null;
+        }
+
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (first == head)
+                first = head.next(0);
+            if (first == null || first == fence)
+                return false;
+            T elem = first.elem;
+            first = first.next(0);
+            action.accept(elem);
+            return true;
+        }
+
+        public long estimateSize() { return estimate; }
+
+        public int characteristics() {
+            return Spliterator.CONCURRENT | Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT;
+        }
+
+        public Comparator<? super T> getComparator() { return comparator; }
+    }
+
+    @SuppressWarnings("unchecked")
+    private SkipNode<T>[] newArray() { return (SkipNode<T>[]) new SkipNode<?>[MAX_LEVEL]; }
+
+    // a level between 1 and MAX_LEVEL, each one half as likely as the one below it
+    private static int randomLevel() {
+        return Integer.numberOfTrailingZeros(ThreadLocalRandom.current().nextInt() | (1 << (MAX_LEVEL - 1))) + 1;
+    }
+}
+
+class SkipNode<T> {
+    protected final T elem;
+    private final AtomicReferenceArray<SkipNode<T>> next;
+
+    public SkipNode(T t, int height) {
+        elem = t;
+        next = new AtomicReferenceArray<SkipNode<T>>(height);
+    }
+
+    public int height() { return next.length(); }
+    public SkipNode<T> next(int level) { return next.get(level); }
+    public void setNext(int level, SkipNode<T> node) { next.set(level, node); }
+    public boolean casNext(int level, SkipNode<T> expect, SkipNode<T> node) {
+        return next.compareAndSet(level, expect, node);
+    }
+}
+
+// An implementation of StringSet using open addressing. The hash code of each string is
+// cached in an int array alongside the array of strings, and a probe only looks at the
+// strings whose cached hash matches, so a lookup usually costs one cache miss on the
+// hashes and one equals call. 0 marks an empty slot, so a hash of 0 is stored as 1.
+class HashStringSet implements StringSet {
+    protected static final int INITIAL_CAPACITY = 16;
+
+    protected String[] keys = new String[INITIAL_CAPACITY];
+    protected int[] hashes = new int[INITIAL_CAPACITY];
+    protected int size;
+
+    public int size() { return size; }
+
+    public boolean contains(String s) {
+        return slot(s, hash(s)) >= 0;
+    }
+
+    public void add(String s) {
+        insert(s);
+    }
+
+    // the stored string equal to s, adding s if there is none, so equal strings can share one copy
+    public String intern(String s) {
+        int h = hash(s);
+        int i = slot(s, h);
+        if (i >= 0)
+            return keys[i];
+        put(s, h);
+        return s;
+    }
+
+    // add s, returning whether it was not already present
+    protected boolean insert(String s) {
+        int h = hash(s);
+        if (slot(s, h) >= 0)
+            return false;
+        put(s, h);
+        return true;
+    }
+
+    private void put(String s, int h) {
+        // keep the table at most half full, so probe sequences stay short
+        if ((size + 1) * 2 > hashes.length)
+            resize();
+        int mask = hashes.length - 1;
+        int i = h & mask;
+        while (hashes[i] != 0)
+            i = (i + 1) & mask;
+        hashes[i] = h;
+        keys[i] = s;
+        size++;
+    }
+
+    // the index of s in the table, or -1
+    private int slot(String s, int h) {
+        int mask = hashes.length - 1;
+        for (int i = h & mask; hashes[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] == h && keys[i].equals(s))
+                return i;
+        }
+        return -1;
+    }
+
+    private void resize() {
+        String[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        keys = new String[oldKeys.length * 2];
+        hashes = new int[oldHashes.length * 2];
+        int mask = hashes.length - 1;
+        for (int j = 0; j < oldHashes.length; j++) {
+            if (oldHashes[j] != 0) {
+                int i = oldHashes[j] & mask;
+                while (hashes[i] != 0)
+                    i = (i + 1) & mask;
+                hashes[i] = oldHashes[j];
+                keys[i] = oldKeys[j];
+            }
+        }
+    }
+
+    public Iterator<String> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    public Spliterator<String> spliterator() {
+        return new SlotSpliterator<String>(i -> hashes[i] != 0, i -> keys[i], 0, hashes.length, size);
+    }
+
+    // spread the bits of String.hashCode, which is cached in the string, across the table
+    protected static int hash(String s) {
+        int h = s.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return h == 0 ? 1 : h;
+    }
+}
+
+// A StringSet with the O(1) membership of HashStringSet and the ordered operations of
+// AVLStringSet. contains only touches the hash table, and the tree is only updated when
+// a string is new.
+class OrderedHashStringSet implements StringSet {
+    protected HashStringSet hash = new HashStringSet();
+    protected AVLStringSet tree = new AVLStringSet();
+
+    public int size() { return hash.size(); }
+    public boolean contains(String s) { return hash.contains(s); }
+
+    public void add(String s) {
+        if (hash.insert(s))
+            tree.add(s);
+    }
+
+    public String first() { return tree.first(); }
+    public String last() { return tree.last(); }
+    public String ceiling(String s) { return tree.ceiling(s); }
+    public String floor(String s) { return tree.floor(s); }
+    public Iterator<String> iterator() { return tree.iterator(); }
+    public Spliterator<String> spliterator() { return tree.spliterator(); }
+    public Iterator<String> range(String from, String to) { return tree.range(from, to); }
+}
+
+// An implementation of Set for ints, which keeps them unboxed in an open addressing table.
+// add(int) and contains(int) never box; the Set methods unbox their argument.
+// Integer.MIN_VALUE marks an empty slot, so whether it is a member is kept in a flag.
+class IntHashSet implements Set<Integer> {
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    protected int[] table = newTable(16);
+    protected int size;
+    protected boolean hasEmptyValue;
+
+    public int size() { return size; }
+    public boolean contains(Integer t) { return contains(t.intValue()); }
+    public void add(Integer t) { add(t.intValue()); }
+
+    public boolean contains(int value) {
+        if (value == EMPTY)
+            return hasEmptyValue;
+        int mask = table.length - 1;
+        for (int i = mix(value) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == value)
+                return true;
+        }
+        return false;
+    }
+
+    public void add(int value) {
+        if (value == EMPTY) {
+            if (!hasEmptyValue) {
+                hasEmptyValue = true;
+                size++;
+            }
+            return;
+        }
+        if (contains(value))
+            return;
+        if ((size + 1) * 2 > table.length) {
+            int[] old = table;
+            table = newTable(old.length * 2);
+            for (int v : old)
+                if (v != EMPTY)
+                    place(v);
+        }
+        place(value);
+        size++;
+    }
+
+    public Iterator<Integer> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    // slot -1 stands for Integer.MIN_VALUE, which has no slot in the table
+    public Spliterator<Integer> spliterator() {
+        int[] table = this.table;
+        return new SlotSpliterator<Integer>(i -> i < 0 ? hasEmptyValue : table[i] != EMPTY,
+                i -> i < 0 ? EMPTY : table[i], -1, table.length, size);
+    }
+
+    private void place(int value) {
+        int mask = table.length - 1;
+        int i = mix(value) & mask;
+        while (table[i] != EMPTY)
+            i = (i + 1) & mask;
+        table[i] = value;
+    }
+
+    private static int[] newTable(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    private static int mix(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+// Bulk operations on arrays sorted by a comparator with no duplicates. Each is a linear
+// merge; when the inputs are large the merge is cut into one piece per worker, by
+// splitting the first array evenly and binary searching for the matching split of the
+// second, and the pieces are merged in parallel and then concatenated.
+class SortedSets {
+    protected static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    private interface Merge {
+        // merge a[aFrom, aTo) with b[bFrom, bTo) into out, returning how many elements were written
+        <T> int merge(T[] a, int aFrom, int aTo, T[] b, int bFrom, int bTo, Object[] out, Comparator<? super T> c);
+    }
+
+    private static final Merge UNION = new Merge() {
+        public <T> int merge(T[] a, int i, int aTo, T[] b, int j, int bTo, Object[] out, Comparator<? super T> c) {
+            int n = 0;
+            while (i < aTo && j < bTo) {
+                int result = c.compare(a[i], b[j]);
+                if (result < 0)
+                    out[n++] = a[i++];
+                else if (result > 0)
+                    out[n++] = b[j++];
+                else {
+                    out[n++] = a[i++];
+                    j++;
+                }
+            }
+            while (i < aTo)
+                out[n++] = a[i++];
+            while (j < bTo)
+                out[n++] = b[j++];
+            return n;
+        }
+    };
+
+    private static final Merge INTERSECTION = new Merge() {
+        public <T> int merge(T[] a, int i, int aTo, T[] b, int j, int bTo, Object[] out, Comparator<? super T> c) {
+            int n = 0;
+            while (i < aTo && j < bTo) {
+                int result = c.compare(a[i], b[j]);
+                if (result < 0)
+                    i++;
+                else if (result > 0)
+                    j++;
+                else {
+                    out[n++] = a[i++];
+                    j++;
+                }
+            }
+            return n;
+        }
+    };
+
+    private static final Merge DIFFERENCE = new Merge() {
+        public <T> int merge(T[] a, int i, int aTo, T[] b, int j, int bTo, Object[] out, Comparator<? super T> c) {
+            int n = 0;
+            while (i < aTo && j < bTo) {
+                int result = c.compare(a[i], b[j]);
+                if (result < 0)
+                    out[n++] = a[i++];
+                else if (result > 0)
+                    j++;
+                else {
+                    i++;
+                    j++;
+                }
+            }
+            while (i < aTo)
+                out[n++] = a[i++];
+            return n;
+        }
+    };
+
+    public static <T> T[] union(T[] a, T[] b, Comparator<? super T> c) { return merge(UNION, a, b, c); }
+    public static <T> T[] intersection(T[] a, T[] b, Comparator<? super T> c) { return merge(INTERSECTION, a, b, c); }
+    public static <T> T[] difference(T[] a, T[] b, Comparator<? super T> c) { return merge(DIFFERENCE, a, b, c); }
+
+    // a sorted copy of items with duplicates removed
+    public static <T> T[] sortDistinct(T[] items, Comparator<? super T> c) {
+        T[] sorted = Arrays.copyOf(items, items.length);
+        if (sorted.length >= PARALLEL_THRESHOLD)
+            Arrays.parallelSort(sorted, c);
+        else
+            Arrays.sort(sorted, c);
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (n == 0 || c.compare(sorted[n - 1], sorted[i]) != 0)
+                sorted[n++] = sorted[i];
+        }
+        return Arrays.copyOf(sorted, n);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T[] merge(Merge merge, T[] a, T[] b, Comparator<? super T> c) {
+        int pieces = 1;
+        if (a.length + b.length >= PARALLEL_THRESHOLD)
+            pieces = Math.max(1, Math.min(a.length / 1024, ForkJoinPool.getCommonPoolParallelism() * 4));
+        if (pieces == 1) {
+            Object[] out = new Object[a.length + b.length];
+            int n = merge.merge(a, 0, a.length, b, 0, b.length, out, c);
+            return (T[]) Arrays.copyOf(out, n, a.getClass());
+        }
+        // piece p merges a[aSplit[p], aSplit[p + 1]) with the elements of b in the same range of values
+        int[] aSplit = new int[pieces + 1];
+        int[] bSplit = new int[pieces + 1];
+        for (int p = 1; p < pieces; p++) {
+            aSplit[p] = (int) ((long) a.length * p / pieces);
+            bSplit[p] = lowerBound(b, a[aSplit[p]], c);
+        }
+        aSplit[pieces] = a.length;
+        bSplit[pieces] = b.length;
+        Object[][] outs = new Object[pieces][];
+        int[] counts = new int[pieces];
+        IntStream.range(0, pieces).parallel().forEach(p -> {
+            outs[p] = new Object[aSplit[p + 1] - aSplit[p] + bSplit[p + 1] - bSplit[p]];
+            counts[p] = merge.merge(a, aSplit[p], aSplit[p + 1], b, bSplit[p], bSplit[p + 1], outs[p], c);
+        });
+        T[] result = (T[]) java.lang.reflect.Array.newInstance(a.getClass().getComponentType(), Arrays.stream(counts).sum());
+        int n = 0;
+        for (int p = 0; p < pieces; p++) {
+            System.arraycopy(outs[p], 0, result, n, counts[p]);
+            n += counts[p];
+        }
+        return result;
+    }
+
+    // the index of the first element of sorted that is not less than key
+    private static <T> int lowerBound(T[] sorted, T key, Comparator<? super T> c) {
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (c.compare(sorted[mid], key) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+}
+
+// An immutable set ordered by comparator, as a path-copying AVL tree. plus returns a new
+// set that shares every node of this one except the O(log n) nodes on the path to the
+// new element, so old versions stay valid and can be read without any locking.
+final class PersistentSet<T> implements Iterable<T> {
+    private final PNode<T> root;
+    private final int size;
+    private final Comparator<T> comparator;
+
+    private PersistentSet(PNode<T> root, int size, Comparator<T> comparator) {
+        this.root = root;
+        this.size = size;
+        this.comparator = comparator;
+    }
+
+    public static <T> PersistentSet<T> empty(Comparator<T> comparator) {
+        return new PersistentSet<T>(null, 0, comparator);
+    }
+
+    public int size() { return size; }
+
+    public boolean contains(T t) {
+        PNode<T> node = root;
+        while (node != null) {
+            int result = comparator.compare(node.elem, t);
+            if (result == 0)
+                return true;
+            node = result > 0 ? node.left : node.right;
+        }
+        return false;
+    }
+
+    // this set with t added, which is this set itself if t is already a member
+    public PersistentSet<T> plus(T t) {
+        PNode<T> newRoot = insert(root, t);
+        return newRoot == root ? this : new PersistentSet<T>(newRoot, size + 1, comparator);
+    }
+
+    private PNode<T> insert(PNode<T> node, T t) {
+        if (node == null)
+            return new PNode<T>(t, null, null);
+        int result = comparator.compare(node.elem, t);
+        if (result > 0) {
+            PNode<T> left = insert(node.left, t);
+            return left == node.left ? node : PNode.balance(node.elem, left, node.right);
+        }
+        if (result < 0) {
+            PNode<T> right = insert(node.right, t);
+            return right == node.right ? node : PNode.balance(node.elem, node.left, right);
+        }
+        return node;
+    }
+
+    public Spliterator<T> spliterator() {
+        TreeShape<PNode<T>, T> shape = new TreeShape<PNode<T>, T>() {
+            public PNode<T> left(PNode<T> node) { return node.left; }
+            public PNode<T> right(PNode<T> node) { return node.right; }
+            public T elem(PNode<T> node) { return node.elem; }
+        };
+        return new TreeSpliterator<PNode<T>, T>(shape, root, size, Spliterator.IMMUTABLE, comparator);
+    }
+
+    public Iterator<T> iterator() {
+        ArrayDeque<PNode<T>> stack = new ArrayDeque<PNode<T>>();
+        for (PNode<T> n = root; n != null; n = n.left)
+            stack.push(n);
+        return new Iterator<T>() {
+            public boolean hasNext() { return !stack.isEmpty(); }
+            public T next() {
+                if (stack.isEmpty())
+                    throw new NoSuchElementException();
+                PNode<T> node = stack.pop();
+                for (PNode<T> n = node.right; n != null; n = n.left)
+                    stack.push(n);
+                return node.elem;
+            }
+        };
+    }
+}
+
+final class PNode<T> {
+    protected final T elem;
+    protected final PNode<T> left, right;
+    protected final int height;
+
+    public PNode(T elem, PNode<T> left, PNode<T> right) {
+        this.elem = elem;
+        this.left = left;
+        this.right = right;
+        this.height = Math.max(height(left), height(right)) + 1;
+    }
+
+    protected static <T> int height(PNode<T> node) { return node == null ? 0 : node.height; }
+
+    // a new node for elem over left and right, rotated if one side has grown two taller than the other
+    protected static <T> PNode<T> balance(T elem, PNode<T> left, PNode<T> right) {
+        if (height(left) > height(right) + 1) {
+            if (height(left.left) >= height(left.right))
+                return new PNode<T>(left.elem, left.left, new PNode<T>(elem, left.right, right));
+            PNode<T> mid = left.right;
+            return new PNode<T>(mid.elem, new PNode<T>(left.elem, left.left, mid.left), new PNode<T>(elem, mid.right, right));
+        }
+        if (height(right) > height(left) + 1) {
+            if (height(right.right) >= height(right.left))
+                return new PNode<T>(right.elem, new PNode<T>(elem, left, right.left), right.right);
+            PNode<T> mid = right.left;
+            return new PNode<T>(mid.elem, new PNode<T>(elem, left, mid.left), new PNode<T>(right.elem, mid.right, right.right));
+        }
+        return new PNode<T>(elem, left, right);
+    }
+}
+
+// An implementation of Set whose contents are a PersistentSet published through an
+// AtomicReference. Readers never lock or wait: contains reads whatever version is
+// current, and snapshot hands out that version in O(1) for consistent iteration. A
+// writer builds the next version off to the side, sharing structure with the current
+// one, and publishes it with a compareAndSet, retrying if another writer got there first.
+class VersionedSet<T> implements Set<T> {
+    private final AtomicReference<PersistentSet<T>> current;
+
+    public VersionedSet(Comparator<T> comparator) {
+        current = new AtomicReference<PersistentSet<T>>(PersistentSet.empty(comparator));
+    }
+
+    public int size() { return current.get().size(); }
+    public boolean contains(T t) { return current.get().contains(t); }
+
+    public void add(T t) {
+        current.updateAndGet(set -> set.plus(t));
+    }
+
+    // add every element as a single new version, so readers see all of them or none
+    public void addAll(Iterable<? extends T> elems) {
+        current.updateAndGet(set -> {
+            for (T t : elems)
+                set = set.plus(t);
+            return set;
+        });
+    }
+
+    // the current version, which later adds will not change
+    public PersistentSet<T> snapshot() { return current.get(); }
+
+    public Iterator<T> iterator() { return snapshot().iterator(); }
+    public Spliterator<T> spliterator() { return snapshot().spliterator(); }
+}
+
+// how a TreeSpliterator finds its way around the nodes of a binary search tree
+interface TreeShape<N, T> {
+    N left(N node);
+    N right(N node);
+    T elem(N node);
+}
+
+// A spliterator over the elements of a binary search tree in order. Before traversal
+// starts it covers an optional pending element followed by a whole subtree, and every
+// element of the subtree is greater than the pending one. trySplit hands out the pending
+// element and the left subtree as the prefix and keeps the root and right subtree, so
+// in a balanced tree every split is close to even and costs O(1). Only the spliterator
+// for the whole tree knows its exact size.
+class TreeSpliterator<N, T> implements Spliterator<T> {
+    private final TreeShape<N, T> shape;
+    private final Comparator<? super T> comparator;
+    private final int extraCharacteristics;
+    private T pending;
+    private boolean hasPending;
+    private N subtree;
+    private long estimate;
+    private boolean sized;
+    // the nodes whose element and right subtree remain, once traversal has started
+    private ArrayDeque<N> stack;
+
+    public TreeSpliterator(TreeShape<N, T> shape, N root, long size, int extraCharacteristics,
+            Comparator<? super T> comparator) {
+        this(shape, null, false, root, size, true, extraCharacteristics, comparator);
+    }
+
+    private TreeSpliterator(TreeShape<N, T> shape, T pending, boolean hasPending, N subtree, long estimate,
+            boolean sized, int extraCharacteristics, Comparator<? super T> comparator) {
+        this.shape = shape;
+        this.pending = pending;
+        this.hasPending = hasPending;
+        this.subtree = subtree;
+        this.estimate = estimate;
+        this.sized = sized;
+        this.extraCharacteristics = extraCharacteristics;
+        this.comparator = comparator;
+    }
+
+    public Spliterator<T> trySplit() {
+        if (stack != null || subtree == null || estimate < 2)
+            return null;
+        TreeSpliterator<N, T> prefix = new TreeSpliterator<N, T>(shape, pending, hasPending, shape.left(subtree),
+                estimate >>>= 1, false, extraCharacteristics, comparator);
+        pending = shape.elem(subtree);
+        hasPending = true;
+        subtree = shape.right(subtree);
+        sized = false;
+        return prefix;
+    }
+
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (hasPending) {
+            hasPending = false;
+            estimate--;
+            action.accept(pending);
+            return true;
+        }
+        if (stack == null) {
+            stack = new ArrayDeque<N>();
+            for (N n = subtree; n != null; n = shape.left(n))
+                stack.push(n);
+        }
+        if (stack.isEmpty())
+            return false;
+        N node = stack.pop();
+        for (N n = shape.right(node); n != null; n = shape.left(n))
+            stack.push(n);
+        estimate--;
+        action.accept(shape.elem(node));
+        return true;
+    }
+
+    public long estimateSize() { return Math.max(0, estimate); }
+
+    public int characteristics() {
+        return Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | extraCharacteristics
+            | (sized ? Spliterator.SIZED : 0);
+    }
+
+    public Comparator<? super T> getComparator() { return comparator; }
+}
+
+// A spliterator over the occupied slots of an open addressing table, which splits by
+// halving its range of slots. Only the spliterator for the whole table knows its exact size.
+class SlotSpliterator<T> implements Spliterator<T> {
+    private final IntPredicate occupied;
+    private final IntFunction<T> get;
+    private int from;
+    private final int to;
+    private long estimate;
+    private boolean sized;
+
+    public SlotSpliterator(IntPredicate occupied, IntFunction<T> get, int from, int to, long size) {
+        this(occupied, get, from, to, size, true);
+    }
+
+    private SlotSpliterator(IntPredicate occupied, IntFunction<T> get, int from, int to, long estimate, boolean sized) {
+        this.occupied = occupied;
+        this.get = get;
+        this.from = from;
+        this.to = to;
+        this.estimate = estimate;
+        this.sized = sized;
+    }
+
+    public Spliterator<T> trySplit() {
+        int mid = (from + to) >> 1;
+        if (mid <= from)
+            return null;
+        SlotSpliterator<T> prefix = new SlotSpliterator<T>(occupied, get, from, mid, estimate >>>= 1, false);
+        from = mid;
+        sized = false;
+        return prefix;
+    }
+
+    public boolean tryAdvance(Consumer<? super T> action) {
+        while (from < to) {
+            int i = from++;
+            if (occupied.test(i)) {
+                action.accept(get.apply(i));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long estimateSize() { return estimate; }
+
+    public int characteristics() {
+        return Spliterator.DISTINCT | Spliterator.NONNULL | (sized ? Spliterator.SIZED : 0);
+    }
+}
+
+// gives a spliterator over a sorted collection the comparator that sorts it
+class ComparatorSpliterator<T> implements Spliterator<T> {
+    private final Spliterator<T> inner;
+    private final Comparator<? super T> comparator;
+
+    public ComparatorSpliterator(Spliterator<T> inner, Comparator<? super T> comparator) {
+        this.inner = inner;
+        this.comparator = comparator;
+    }
+
+    public Spliterator<T> trySplit() {
+        Spliterator<T> prefix = inner.trySplit();
+        return prefix == null ? null : new ComparatorSpliterator<T>(prefix, comparator);
+    }
+
+    public boolean tryAdvance(Consumer<? super T> action) { return inner.tryAdvance(action); }
+    public void forEachRemaining(Consumer<? super T> action) { inner.forEachRemaining(action); }
+    public long estimateSize() { return inner.estimateSize(); }
+    public int characteristics() { return inner.characteristics() | Spliterator.SORTED; }
+    public Comparator<? super T> getComparator() { return comparator; }
+}
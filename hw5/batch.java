@@ -0,0 +1,62 @@
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Runs a chain of operations over a batch of PPM files, as
+//     java Batch (-in dir | -manifest file) [-out dir] [-ops negate,greyscale,...]
+//                [-radius 60] [-sigma 2] [-parallelism n] [-readers 4] [-transformers 2]
+//                [-writers 4] [-queue 4]
+// and reports the throughput. The ops are applied in the order given.
+class Batch {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2)
+            opts.put(args[i].replaceFirst("^-+", ""), args[i + 1]);
+        BatchProcessor batch;
+        if (opts.containsKey("in"))
+            batch = BatchProcessor.scan(Paths.get(opts.get("in")));
+        else if (opts.containsKey("manifest"))
+            batch = BatchProcessor.manifest(Paths.get(opts.get("manifest")));
+        else
+            throw new IllegalArgumentException("either -in or -manifest is needed");
+        int radius = Integer.parseInt(opts.getOrDefault("radius", "60"));
+        double sigma = Double.parseDouble(opts.getOrDefault("sigma", "2"));
+        String[] ops = opts.getOrDefault("ops", "negate").split(",");
+        for (String op : ops)
+            transform(op, radius, sigma);
+        ForkJoinPool pool = new ForkJoinPool(Integer.parseInt(opts.getOrDefault("parallelism",
+                "" + Runtime.getRuntime().availableProcessors())));
+        try {
+            BatchResult result = batch.outputDir(Paths.get(opts.getOrDefault("out", "out")))
+                .transform((image, p) -> {
+                    for (String op : ops)
+                        image = transform(op, radius, sigma).apply(image, p);
+                    return image;
+                })
+                .pool(pool)
+                .readers(Integer.parseInt(opts.getOrDefault("readers", "4")))
+                .transformers(Integer.parseInt(opts.getOrDefault("transformers", "2")))
+                .writers(Integer.parseInt(opts.getOrDefault("writers", "4")))
+                .queueCapacity(Integer.parseInt(opts.getOrDefault("queue", "4")))
+                .run();
+            System.out.println(result);
+            for (Map.Entry<Path, Exception> failure : result.failures.entrySet())
+                System.out.println("failed " + failure.getKey() + ": " + failure.getValue());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    static ImageTransform transform(String op, int radius, double sigma) {
+        switch (op) {
+        case "negate": return (img, pool) -> img.negate();
+        case "greyscale": return (img, pool) -> img.greyscale();
+        case "mirrorImage": return (img, pool) -> img.mirrorImage(pool);
+        case "mirrorImage2": return (img, pool) -> img.mirrorImage2();
+        case "gaussianBlur": return (img, pool) -> img.gaussianBlur(radius, sigma, pool);
+        case "gaussianBlurPyramid": return (img, pool) -> img.gaussianBlurPyramid(radius, sigma, pool);
+        default: throw new IllegalArgumentException("unknown op " + op);
+        }
+    }
+}
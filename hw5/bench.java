@@ -0,0 +1,133 @@
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// A benchmark harness for the PPMImage operations, run as
+//     java Bench [-sizes 512x512,2048x2048] [-radii 5,60] [-parallelism 1,4]
+//                [-ops negate,greyscale,...] [-warmup 5] [-iterations 10]
+// Images are generated, so no input file is needed. Each operation is run for some
+// warmup iterations first, so that the JIT has compiled it and the pages it touches
+// are mapped, and only the iterations after that are measured.
+class Bench {
+    interface Op {
+        PPMImage run(PPMImage img, int radius, ForkJoinPool pool);
+    }
+
+    static final Map<String, Op> OPS = new LinkedHashMap<String, Op>();
+    static {
+        OPS.put("negate", (img, radius, pool) -> img.negate());
+        OPS.put("greyscale", (img, radius, pool) -> img.greyscale());
+        OPS.put("mirrorImage", (img, radius, pool) -> img.mirrorImage(pool));
+        OPS.put("mirrorImage2", (img, radius, pool) -> img.mirrorImage2());
+        OPS.put("gaussianBlur", (img, radius, pool) -> img.gaussianBlur(radius, 2, pool));
+        OPS.put("gaussianBlur2D", (img, radius, pool) -> img.gaussianBlur2D(radius, 2, pool));
+        // the in place and buffered variants should allocate no pixel arrays once warmed up
+        OPS.put("negateInPlace", (img, radius, pool) -> img.negateInPlace());
+        OPS.put("greyscaleInPlace", (img, radius, pool) -> img.greyscaleInPlace());
+        OPS.put("mirrorImageInPlace", (img, radius, pool) -> img.mirrorImageInPlace(pool));
+        OPS.put("gaussianBlurBuffered", (img, radius, pool) -> img.gaussianBlur(radius, 2, buffersFor(img), pool));
+    }
+
+    // operations are measured one at a time, so one set of buffers, replaced when the size changes, is enough
+    static BlurBuffers buffers;
+
+    static BlurBuffers buffersFor(PPMImage img) {
+        if (buffers == null || buffers.width != img.width || buffers.height != img.height)
+            buffers = new BlurBuffers(img.width, img.height);
+        return buffers;
+    }
+
+    // blurs are the only operations that depend on the radius
+    static boolean usesRadius(String op) { return op.startsWith("gaussianBlur"); }
+
+    // these overwrite the image they are given, so they must not be given the shared one
+    static boolean inPlace(String op) { return op.endsWith("InPlace"); }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2)
+            opts.put(args[i].replaceFirst("^-+", ""), args[i + 1]);
+        String[] sizes = opts.getOrDefault("sizes", "512x512,2048x2048").split(",");
+        int[] radii = ints(opts.getOrDefault("radii", "5,60"));
+        int[] parallelism = ints(opts.getOrDefault("parallelism",
+                "1," + Runtime.getRuntime().availableProcessors()));
+        String[] ops = opts.getOrDefault("ops", "negate,greyscale,mirrorImage,mirrorImage2,gaussianBlur").split(",");
+        int warmup = Integer.parseInt(opts.getOrDefault("warmup", "5"));
+        int iterations = Integer.parseInt(opts.getOrDefault("iterations", "10"));
+
+        System.out.printf("%-20s %11s %6s %4s %10s %10s %12s %8s%n",
+                "op", "size", "radius", "par", "ops/s", "ms/op", "alloc MB/op", "gcs/op");
+        for (String size : sizes) {
+            String[] dims = size.split("x");
+            PPMImage img = synthetic(Integer.parseInt(dims[0]), Integer.parseInt(dims[1]));
+            for (String name : ops) {
+                Op op = OPS.get(name);
+                if (op == null)
+                    throw new IllegalArgumentException("unknown op " + name);
+                for (int radius : usesRadius(name) ? radii : new int[] { 0 }) {
+                    for (int par : parallelism) {
+                        // each configuration gets its own copy, made here so the copy is not timed, and
+                        // the operations measured after it still see the original image
+                        PPMImage input = inPlace(name) ? copy(img) : img;
+                        ForkJoinPool pool = new ForkJoinPool(par);
+                        try {
+                            Result r = measure(pool, () -> op.run(input, radius, pool), warmup, iterations);
+                            System.out.printf("%-20s %11s %6s %4d %10.2f %10.3f %12.2f %8.2f%n",
+                                    name, size, usesRadius(name) ? "" + radius : "-", par,
+                                    1e9 / r.nanosPerOp, r.nanosPerOp / 1e6, r.bytesPerOp / 1e6, r.gcsPerOp);
+                        }
+                        finally {
+                            pool.shutdown();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static class Result {
+        double nanosPerOp, bytesPerOp, gcsPerOp;
+    }
+
+    // Run the operation inside the pool, so the parallel streams and fork/join tasks
+    // it starts use that pool's workers
+    static Result measure(ForkJoinPool pool, Callable<PPMImage> op, int warmup, int iterations) {
+        for (int i = 0; i < warmup; i++)
+            pool.submit(op).join();
+        long bytes0 = Instrumentation.allocatedBytes();
+        long gcs0 = gcCount();
+        long time0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            pool.submit(op).join();
+        long time1 = System.nanoTime();
+        Result r = new Result();
+        r.nanosPerOp = (time1 - time0) / (double) iterations;
+        r.bytesPerOp = (Instrumentation.allocatedBytes() - bytes0) / (double) iterations;
+        r.gcsPerOp = (gcCount() - gcs0) / (double) iterations;
+        return r;
+    }
+
+    static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, gc.getCollectionCount());
+        return total;
+    }
+
+    // a deterministic noisy image, so that every run measures the same work
+    static PPMImage synthetic(int width, int height) {
+        Random random = new Random(131);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = random.nextInt(1 << 24);
+        return new PPMImage(width, height, 255, pixels);
+    }
+
+    static PPMImage copy(PPMImage img) {
+        return new PPMImage(img.width, img.height, img.maxColorVal, img.pixels.clone());
+    }
+
+    static int[] ints(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+}
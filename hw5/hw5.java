@@ -14,9 +14,40 @@ Other Resources I Consulted:
 */
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
 
 // a marker for code that you need to implement
 class ImplementMe extends RuntimeException {}
@@ -32,255 +63,2265 @@ class RGB {
     }
 
     public String toString() { return "(" + R + "," + G + "," + B + ")"; }
+
+    // Pack a triple into a single int as 0x00RRGGBB
+    protected static int pack(int r, int g, int b) {
+        return ((r & 0xff) << 16) | ((g & 0xff) << 8) | (b & 0xff);
+    }
+
+    protected static int red(int packed) { return (packed >> 16) & 0xff; }
+    protected static int green(int packed) { return (packed >> 8) & 0xff; }
+    protected static int blue(int packed) { return packed & 0xff; }
+
+    // Produce an RGB view of a packed pixel
+    protected static RGB unpack(int packed) {
+        return new RGB(red(packed), green(packed), blue(packed));
+    }
+}
+
+
+// an object representing a single PPM image
+class PPMImage {
+    protected int width, height, maxColorVal;
+    // Pixels are stored packed as 0x00RRGGBB, one int per pixel, in row-major order
+    protected int[] pixels;
+    // bumped by setPixel, which is too fine grained to invalidate PyramidCache on every
+    // call, so that the cache can tell a pyramid built before the change is stale
+    protected int modCount;
+
+    public PPMImage(int w, int h, int m, int[] p) {
+        width = w;
+        height = h;
+        maxColorVal = m;
+        pixels = p;
+    }
+
+    public PPMImage(int w, int h, int m, RGB[] p) {
+        this(w, h, m, new int[p.length]);
+        for (int i = 0; i < p.length; i++) {
+            pixels[i] = RGB.pack(p[i].R, p[i].G, p[i].B);
+        }
+    }
+
+    // RGB objects are only created on demand as views of the packed pixels
+    public RGB getPixel(int x, int y) {
+        return RGB.unpack(pixels[y * width + x]);
+    }
+
+    public void setPixel(int x, int y, RGB rgb) {
+        pixels[y * width + x] = RGB.pack(rgb.R, rgb.G, rgb.B);
+        modCount++;
+    }
+
+    // parse a PPM image file named fname and produce a new PPMImage object
+    public PPMImage(String fname) 
+        throws FileNotFoundException, IOException {
+        try (Trace trace = Instrumentation.begin("read", ForkJoinPool.commonPool());
+                FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ)) {
+            PPMHeader header = PPMIO.readHeader(channel);
+            this.width = header.width;
+            this.height = header.height;
+            this.maxColorVal = header.maxColorVal;
+            checkFitsInArray(width, height);
+            this.pixels = new int[width * height];
+            trace.phase("header");
+            PPMIO.readRows(channel, header, 0, height, pixels, 0);
+            trace.phase("decode");
+            trace.read(header.rowOffset(height));
+            trace.end(pixels.length);
+        }
+    }
+
+    // read only the pixels inside region of a PPM image file, mapping just the rows it covers
+    public PPMImage(String fname, Region region)
+        throws FileNotFoundException, IOException {
+        try (Trace trace = Instrumentation.begin("readRegion", ForkJoinPool.commonPool());
+                FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ)) {
+            PPMHeader header = PPMIO.readHeader(channel);
+            region.checkWithin(header.width, header.height);
+            this.width = region.width;
+            this.height = region.height;
+            this.maxColorVal = header.maxColorVal;
+            checkFitsInArray(width, height);
+            this.pixels = new int[width * height];
+            trace.phase("header");
+            PPMIO.readRegion(channel, header, region, pixels);
+            trace.phase("decode");
+            trace.read((long) height * header.rowBytes());
+            trace.end(pixels.length);
+        }
+    }
+
+    // PPMHeader allows any size, since ImagePipeline streams files too big for memory, but
+    // an image read whole has to fit in one int[]
+    private static void checkFitsInArray(int width, int height) throws IOException {
+        if ((long) width * height > Integer.MAX_VALUE)
+            throw new IOException("a " + width + "x" + height + " image is too large to read into memory");
+    }
+
+    // write a PPMImage object to a file named fname
+    public void toFile(String fname) throws IOException {
+        try (Trace trace = Instrumentation.begin("write", ForkJoinPool.commonPool())) {
+            PPMHeader header = new PPMHeader(width, height, maxColorVal);
+            try (FileChannel channel = PPMIO.create(fname, header)) {
+                trace.phase("header");
+                PPMIO.writeRows(channel, header, 0, height, pixels, 0);
+                trace.phase("encode");
+                trace.wrote(header.rowOffset(height));
+                trace.end(pixels.length);
+            }
+        }
+    }
+
+    // write in the lossless tiled format read by TiledIO, which is usually much smaller
+    public void toTiledFile(String fname) throws IOException {
+        TiledIO.write(this, fname);
+    }
+
+    // implement using Java 8 Streams
+    public PPMImage negate() {
+        try (Trace trace = Instrumentation.begin("negate", ForkJoinPool.commonPool())) {
+            // Split image by pixels
+            int[] newPixels = new int[pixels.length];
+            IntStream.range(0, pixels.length).parallel()
+                .forEach(i -> newPixels[i] = Helpers.negatePixel(pixels[i], maxColorVal));
+            trace.end(pixels.length);
+            return new PPMImage(width, height, maxColorVal, newPixels);
+        }
+    }
+
+    // implement using Java 8 Streams
+    public PPMImage greyscale() {
+        try (Trace trace = Instrumentation.begin("greyscale", ForkJoinPool.commonPool())) {
+            // Split image by pixels
+            int[] newPixels = new int[pixels.length];
+            IntStream.range(0, pixels.length).parallel()
+                .forEach(i -> newPixels[i] = Helpers.greyscalePixel(pixels[i]));
+            trace.end(pixels.length);
+            return new PPMImage(width, height, maxColorVal, newPixels);
+        }
+    }    
+
+    // implement using Java's Fork/Join library
+    public PPMImage mirrorImage() {
+        return mirrorImage(ForkJoinPool.commonPool());
+    }
+
+    public PPMImage mirrorImage(ForkJoinPool pool) {
+        try (Trace trace = Instrumentation.begin("mirrorImage", pool)) {
+            PPMImage mirror = new PPMImage(width, height, maxColorVal, Arrays.copyOf(pixels, pixels.length));
+            trace.phase("copy");
+            pool.invoke(new MirrorTask(mirror.pixels, width, 0, height,
+                    SplitPolicy.adaptive(pool, pixels.length, 1)));
+            trace.phase("mirror");
+            trace.end(pixels.length);
+            return mirror;
+        }
+    }
+
+    // implement using Java 8 Streams
+    public PPMImage mirrorImage2() {
+        try (Trace trace = Instrumentation.begin("mirrorImage2", ForkJoinPool.commonPool())) {
+            int[] mirror = Arrays.copyOf(pixels, pixels.length);
+            // Split up the image by row
+            IntStream.range(0, height).parallel().forEach(curHeight -> {
+                int left = curHeight * width;
+                int right = ((curHeight + 1) * width) - 1;
+                // Since we're mirroring the image, swap a column from the left half with one from the right half
+                // If we went past width/2, then we would mirror the image and then mirror it again, resulting in the original image
+                for (int i = 0; i < width/2; i++) {
+                    Helpers.swapPixels(mirror, left + i, right - i);
+                }
+            });
+            trace.end(pixels.length);
+            return new PPMImage(width, height, maxColorVal, mirror);
+        }
+    }
+
+    // implement using Java's Fork/Join library
+    public PPMImage gaussianBlur(int radius, double sigma) {
+        return gaussianBlur(radius, sigma, ForkJoinPool.commonPool());
+    }
+
+    public PPMImage gaussianBlur(int radius, double sigma, ForkJoinPool pool) {
+        try (Trace trace = Instrumentation.begin("gaussianBlur", pool)) {
+            // The Gaussian is separable, so blur the rows and then the columns of the result
+            // This is O(radius) work per pixel instead of O(radius^2) for the full 2D filter
+            int[] dest = new int[pixels.length];
+            float[] R = new float[pixels.length];
+            float[] G = new float[pixels.length];
+            float[] B = new float[pixels.length];
+            double[] kernel = Gaussian.gaussianKernel(radius, sigma);
+            // each pass costs one multiply-add per kernel tap per pixel
+            SplitPolicy policy = SplitPolicy.adaptive(pool, pixels.length, kernel.length);
+            trace.phase("allocate");
+            pool.invoke(new HorizontalGaussianTask(this.pixels, R, G, B, kernel, width, 0, height, policy));
+            trace.phase("horizontal");
+            pool.invoke(new VerticalGaussianTask(R, G, B, dest, kernel, width, height, 0, 0, 0, height, policy));
+            trace.phase("vertical");
+            trace.end(pixels.length);
+            return new PPMImage(width, height, maxColorVal, dest);
+        }
+    }
+
+    // Approximate the blur on a coarse level of this image's pyramid, which is built the
+    // first time and then kept in PyramidCache.shared(). Much faster for large sigmas, and
+    // the same as gaussianBlur for sigmas too small to leave full resolution.
+    public PPMImage gaussianBlurPyramid(int radius, double sigma) {
+        return gaussianBlurPyramid(radius, sigma, ForkJoinPool.commonPool());
+    }
+
+    public PPMImage gaussianBlurPyramid(int radius, double sigma, ForkJoinPool pool) {
+        return PyramidCache.shared().get(this, pool).gaussianBlur(radius, sigma, pool);
+    }
+
+    // Blur into buffers instead of into newly allocated arrays. The result is one of the two
+    // output images that buffers owns and alternates between, so it stays valid until the
+    // call after next with the same buffers; copy it to keep it any longer. Once buffers
+    // exist, blurring a stream of same-sized frames allocates no per-frame arrays.
+    public PPMImage gaussianBlur(int radius, double sigma, BlurBuffers buffers) {
+        return gaussianBlur(radius, sigma, buffers, ForkJoinPool.commonPool());
+    }
+
+    public PPMImage gaussianBlur(int radius, double sigma, BlurBuffers buffers, ForkJoinPool pool) {
+        buffers.checkFits(this);
+        try (Trace trace = Instrumentation.begin("gaussianBlurBuffered", pool)) {
+            double[] kernel = buffers.kernel(radius, sigma);
+            // never this image, so the output of one call can be blurred again by the next
+            PPMImage dest = buffers.nextOutput(this);
+            SplitPolicy policy = SplitPolicy.adaptive(pool, pixels.length, kernel.length);
+            pool.invoke(new HorizontalGaussianTask(this.pixels, buffers.R, buffers.G, buffers.B, kernel, width, 0, height, policy));
+            trace.phase("horizontal");
+            pool.invoke(new VerticalGaussianTask(buffers.R, buffers.G, buffers.B, dest.pixels, kernel, width, height,
+                    0, 0, 0, height, policy));
+            trace.phase("vertical");
+            trace.end(pixels.length);
+            return dest;
+        }
+    }
+
+    // The in place variants below overwrite this image's pixels and return it, so they
+    // allocate no pixel arrays. Any pyramid cached for this image no longer matches it, so
+    // they drop it from the shared cache.
+
+    public PPMImage negateInPlace() {
+        try (Trace trace = Instrumentation.begin("negateInPlace", ForkJoinPool.commonPool())) {
+            IntStream.range(0, pixels.length).parallel()
+                .forEach(i -> pixels[i] = Helpers.negatePixel(pixels[i], maxColorVal));
+            PyramidCache.shared().invalidate(this);
+            trace.end(pixels.length);
+            return this;
+        }
+    }
+
+    public PPMImage greyscaleInPlace() {
+        try (Trace trace = Instrumentation.begin("greyscaleInPlace", ForkJoinPool.commonPool())) {
+            IntStream.range(0, pixels.length).parallel()
+                .forEach(i -> pixels[i] = Helpers.greyscalePixel(pixels[i]));
+            PyramidCache.shared().invalidate(this);
+            trace.end(pixels.length);
+            return this;
+        }
+    }
+
+    public PPMImage mirrorImageInPlace() {
+        return mirrorImageInPlace(ForkJoinPool.commonPool());
+    }
+
+    // MirrorTask already swaps within each row, so this is mirrorImage without the copy
+    public PPMImage mirrorImageInPlace(ForkJoinPool pool) {
+        try (Trace trace = Instrumentation.begin("mirrorImageInPlace", pool)) {
+            pool.invoke(new MirrorTask(pixels, width, 0, height, SplitPolicy.adaptive(pool, pixels.length, 1)));
+            PyramidCache.shared().invalidate(this);
+            trace.end(pixels.length);
+            return this;
+        }
+    }
+
+    // Blur with the full 2D filter, one pixel at a time
+    public PPMImage gaussianBlur2D(int radius, double sigma) {
+        return gaussianBlur2D(radius, sigma, ForkJoinPool.commonPool());
+    }
+
+    public PPMImage gaussianBlur2D(int radius, double sigma, ForkJoinPool pool) {
+        try (Trace trace = Instrumentation.begin("gaussianBlur2D", pool)) {
+            int[] dest = new int[pixels.length];
+            float[] R = new float[pixels.length];
+            float[] G = new float[pixels.length];
+            float[] B = new float[pixels.length];
+            Helpers.splitChannels(pixels, R, G, B);
+            double[][] filter = Gaussian.gaussianFilter(radius, sigma);
+            trace.phase("split");
+            pool.invoke(new GaussianTask(R, G, B, dest, filter, width, height, 0, height,
+                    SplitPolicy.adaptive(pool, pixels.length, (double) filter.length * filter.length)));
+            trace.phase("convolve");
+            trace.end(pixels.length);
+            return new PPMImage(width, height, maxColorVal, dest);
+        }
+    }
+
+    // a copy of the pixels inside region, as an image of their own
+    public PPMImage crop(Region region) {
+        region.checkWithin(width, height);
+        int[] dest = new int[region.width * region.height];
+        for (int row = 0; row < region.height; row++)
+            System.arraycopy(pixels, (region.y + row) * width + region.x, dest, row * region.width, region.width);
+        return new PPMImage(region.width, region.height, maxColorVal, dest);
+    }
+
+    // a window onto the pixels inside region that shares this image's pixels rather than copying them
+    public ImageView view(Region region) {
+        return new ImageView(this, region);
+    }
+
+    // The region variants below compute only the pixels of the full result that fall inside
+    // region, and return them as an image the size of region. Each one reads only the source
+    // pixels that those result pixels depend on.
+
+    public PPMImage negate(Region region) {
+        return mapRegion("negateRegion", region, pix -> Helpers.negatePixel(pix, maxColorVal));
+    }
+
+    public PPMImage greyscale(Region region) {
+        return mapRegion("greyscaleRegion", region, Helpers::greyscalePixel);
+    }
+
+    // apply op to each pixel inside region, one parallel task per row
+    private PPMImage mapRegion(String operation, Region region, IntUnaryOperator op) {
+        region.checkWithin(width, height);
+        try (Trace trace = Instrumentation.begin(operation, ForkJoinPool.commonPool())) {
+            int[] dest = new int[region.width * region.height];
+            IntStream.range(0, region.height).parallel().forEach(row -> {
+                int in = (region.y + row) * width + region.x;
+                int out = row * region.width;
+                for (int i = 0; i < region.width; i++)
+                    dest[out + i] = op.applyAsInt(pixels[in + i]);
+            });
+            trace.end(dest.length);
+            return new PPMImage(region.width, region.height, maxColorVal, dest);
+        }
+    }
+
+    // Column x of the mirrored image is column width - 1 - x of this one, so region of the
+    // result is read from the columns reflected across the middle of the image
+    public PPMImage mirrorImage(Region region) {
+        region.checkWithin(width, height);
+        try (Trace trace = Instrumentation.begin("mirrorImageRegion", ForkJoinPool.commonPool())) {
+            int[] dest = new int[region.width * region.height];
+            IntStream.range(0, region.height).parallel().forEach(row -> {
+                int in = (region.y + row) * width + width - 1 - region.x;
+                int out = row * region.width;
+                for (int i = 0; i < region.width; i++)
+                    dest[out + i] = pixels[in - i];
+            });
+            trace.end(dest.length);
+            return new PPMImage(region.width, region.height, maxColorVal, dest);
+        }
+    }
+
+    public PPMImage gaussianBlur(int radius, double sigma, Region region) {
+        return gaussianBlur(radius, sigma, region, ForkJoinPool.commonPool());
+    }
+
+    // Blur only the window made of region plus a halo of radius pixels on every side. Any tap
+    // that falls outside the window also falls outside the image, where it clamps to the
+    // image's edge, which is the window's edge too, so blurring the window on its own gives
+    // the same pixels as blurring the whole image.
+    public PPMImage gaussianBlur(int radius, double sigma, Region region, ForkJoinPool pool) {
+        region.checkWithin(width, height);
+        try (Trace trace = Instrumentation.begin("gaussianBlurRegion", pool)) {
+            Region window = region.expand(radius, width, height);
+            PPMImage source = crop(window);
+            int size = source.pixels.length;
+            int[] dest = new int[region.height * window.width];
+            float[] R = new float[size];
+            float[] G = new float[size];
+            float[] B = new float[size];
+            double[] kernel = Gaussian.gaussianKernel(radius, sigma);
+            trace.phase("crop");
+            pool.invoke(new HorizontalGaussianTask(source.pixels, R, G, B, kernel, window.width, 0, window.height,
+                    SplitPolicy.adaptive(pool, size, kernel.length)));
+            trace.phase("horizontal");
+            // only the rows of the window inside region are output
+            int top = region.y - window.y;
+            pool.invoke(new VerticalGaussianTask(R, G, B, dest, kernel, window.width, window.height, 0, top,
+                    top, top + region.height, SplitPolicy.adaptive(pool, dest.length, kernel.length)));
+            trace.phase("vertical");
+            PPMImage result = new PPMImage(window.width, region.height, maxColorVal, dest)
+                .crop(new Region(region.x - window.x, 0, region.width, region.height));
+            trace.end(result.pixels.length);
+            return result;
+        }
+    }
+}
+
+// a rectangle of pixels, given by its top left corner and its size
+class Region {
+    public final int x, y, width, height;
+
+    public Region(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width < 0 || height < 0)
+            throw new IllegalArgumentException("bad region " + x + "," + y + " " + width + "x" + height);
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    public long pixels() { return (long) width * height; }
+
+    public void checkWithin(int imageWidth, int imageHeight) {
+        if ((long) x + width > imageWidth || (long) y + height > imageHeight)
+            throw new IllegalArgumentException("region " + this + " is outside the " + imageWidth + "x" + imageHeight + " image");
+    }
+
+    // this region grown by halo pixels on every side, cut back to the image
+    public Region expand(int halo, int imageWidth, int imageHeight) {
+        int left = Math.max(0, x - halo);
+        int top = Math.max(0, y - halo);
+        int right = (int) Math.min(imageWidth, (long) x + width + halo);
+        int bottom = (int) Math.min(imageHeight, (long) y + height + halo);
+        return new Region(left, top, right - left, bottom - top);
+    }
+
+    public String toString() { return x + "," + y + " " + width + "x" + height; }
+}
+
+// A window onto part of a PPMImage. It holds no pixels of its own: reads and writes go
+// straight to the parent's pixels, so changes to either show up in the other.
+class ImageView {
+    protected final PPMImage parent;
+    protected final Region region;
+
+    public ImageView(PPMImage parent, Region region) {
+        region.checkWithin(parent.width, parent.height);
+        this.parent = parent;
+        this.region = region;
+    }
+
+    public int width() { return region.width; }
+    public int height() { return region.height; }
+
+    public RGB getPixel(int x, int y) {
+        checkBounds(x, y);
+        return parent.getPixel(region.x + x, region.y + y);
+    }
+
+    public void setPixel(int x, int y, RGB rgb) {
+        checkBounds(x, y);
+        parent.setPixel(region.x + x, region.y + y, rgb);
+    }
+
+    private void checkBounds(int x, int y) {
+        if (x < 0 || y < 0 || x >= region.width || y >= region.height)
+            throw new IndexOutOfBoundsException("(" + x + "," + y + ") is outside the " + region.width + "x" + region.height + " view");
+    }
+
+    // copy the pixels out into an image of their own
+    public PPMImage toImage() { return parent.crop(region); }
+
+    // transform the pixels of the view, reading from the parent and writing a new image the size of the view
+    public PPMImage negate() { return parent.negate(region); }
+    public PPMImage greyscale() { return parent.greyscale(region); }
+
+    // the blur reads up to radius pixels of the parent outside the view, just as a blur of the whole parent would
+    public PPMImage gaussianBlur(int radius, double sigma) { return parent.gaussianBlur(radius, sigma, region); }
+}
+
+// The scratch space for blurring frames of one size: the channel planes of the horizontal
+// pass, two output images used in turn, and the kernel of the last radius and sigma. Not
+// safe to share between threads blurring at the same time; give each its own.
+class BlurBuffers {
+    protected final int width, height;
+    protected final float[] R, G, B;
+    private final PPMImage[] outputs = new PPMImage[2];
+    private int next = 0;
+    private double[] kernel;
+    private int kernelRadius;
+    private double kernelSigma;
+
+    public BlurBuffers(int width, int height) {
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("bad frame size " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        int size = width * height;
+        R = new float[size];
+        G = new float[size];
+        B = new float[size];
+        for (int i = 0; i < outputs.length; i++)
+            outputs[i] = new PPMImage(width, height, 255, new int[size]);
+    }
+
+    protected void checkFits(PPMImage image) {
+        if (image.width != width || image.height != height)
+            throw new IllegalArgumentException("a " + image.width + "x" + image.height + " image does not fit "
+                    + width + "x" + height + " buffers");
+    }
+
+    // the kernel for radius and sigma, only computed again when they change
+    protected double[] kernel(int radius, double sigma) {
+        if (kernel == null || radius != kernelRadius || sigma != kernelSigma) {
+            kernel = Gaussian.gaussianKernel(radius, sigma);
+            kernelRadius = radius;
+            kernelSigma = sigma;
+        }
+        return kernel;
+    }
+
+    // the output that was not handed out last time, unless that one is source itself
+    protected PPMImage nextOutput(PPMImage source) {
+        if (outputs[next] == source)
+            next = 1 - next;
+        PPMImage out = outputs[next];
+        next = 1 - next;
+        out.maxColorVal = source.maxColorVal;
+        PyramidCache.shared().invalidate(out);
+        return out;
+    }
+}
+
+// the header of a binary (P6) PPM file
+class PPMHeader {
+    protected final int width, height, maxColorVal;
+    // the offset in the file at which the pixel data starts
+    protected final long dataOffset;
+
+    public PPMHeader(int width, int height, int maxColorVal) {
+        this(width, height, maxColorVal, headerString(width, height, maxColorVal).length());
+    }
+
+    public PPMHeader(int width, int height, int maxColorVal, long dataOffset) {
+        this.width = width;
+        this.height = height;
+        this.maxColorVal = maxColorVal;
+        this.dataOffset = dataOffset;
+    }
+
+    protected static String headerString(int width, int height, int maxColorVal) {
+        return "P6\n" + width + " " + height + "\n" + maxColorVal + "\n";
+    }
+
+    public byte[] toBytes() {
+        return headerString(width, height, maxColorVal).getBytes();
+    }
+
+    public long rowBytes() { return (long) width * 3; }
+
+    public long rowOffset(int row) { return dataOffset + row * rowBytes(); }
+
+    // parse the header in one pass, allowing comments and any whitespace between the fields
+    public static PPMHeader parse(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 2 || buf.get() != 'P' || buf.get() != '6')
+            throw new IOException("not a binary PPM (P6) file");
+        int width = parseField(buf);
+        int height = parseField(buf);
+        int max = parseField(buf);
+        // exactly one whitespace character separates the header from the pixels
+        if (!buf.hasRemaining() || !isSpace(buf.get()))
+            throw new IOException("malformed PPM header");
+        if (width <= 0 || height <= 0)
+            throw new IOException("bad PPM dimensions " + width + "x" + height);
+        if (max <= 0 || max > 255)
+            throw new IOException("unsupported max color value " + max);
+        return new PPMHeader(width, height, max, buf.position());
+    }
+
+    private static int parseField(ByteBuffer buf) throws IOException {
+        // skip whitespace and comments, which run from a # to the end of the line
+        while (true) {
+            if (!buf.hasRemaining())
+                throw new IOException("truncated PPM header");
+            byte b = buf.get(buf.position());
+            if (isSpace(b))
+                buf.get();
+            else if (b == '#') {
+                while (buf.hasRemaining() && b != '\n' && b != '\r')
+                    b = buf.get();
+            }
+            else
+                break;
+        }
+        long val = 0;
+        int digits = 0;
+        while (buf.hasRemaining() && buf.get(buf.position()) >= '0' && buf.get(buf.position()) <= '9') {
+            val = val * 10 + (buf.get() - '0');
+            if (val > Integer.MAX_VALUE)
+                throw new IOException("PPM header value too large");
+            digits++;
+        }
+        if (digits == 0)
+            throw new IOException("malformed PPM header");
+        return (int) val;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == 0x0b || b == 0x0c;
+    }
+}
+
+// reads and writes PPM pixel data through memory mapped file channels
+class PPMIO {
+    // the most bytes we map at once, well below the 2GB limit of a MappedByteBuffer
+    private static final long MAX_MAPPING = 1L << 30;
+
+    public static PPMHeader readHeader(FileChannel channel) throws IOException {
+        long size = channel.size();
+        PPMHeader header = PPMHeader.parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAX_MAPPING)));
+        long needed = header.rowOffset(header.height);
+        if (size < needed)
+            throw new IOException("truncated PPM file: expected " + needed + " bytes but found " + size);
+        return header;
+    }
+
+    // open fname for writing and write the header into it
+    public static FileChannel create(String fname, PPMHeader header) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer bytes = ByteBuffer.wrap(header.toBytes());
+        while (bytes.hasRemaining())
+            channel.write(bytes, bytes.position());
+        return channel;
+    }
+
+    private static int rowsPerMapping(PPMHeader header) {
+        return (int) Math.max(1, Math.min(header.height, MAX_MAPPING / header.rowBytes()));
+    }
+
+    // decode rows [firstRow, firstRow + rows) of the file into dest starting at destOffset
+    public static void readRows(FileChannel channel, PPMHeader header, int firstRow, int rows,
+            int[] dest, int destOffset) throws IOException {
+        int step = rowsPerMapping(header);
+        int width = header.width;
+        for (int start = 0; start < rows; start += step) {
+            int count = Math.min(step, rows - start);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                    header.rowOffset(firstRow + start), count * header.rowBytes());
+            int base = destOffset + start * width;
+            // Split the mapping up by row, each row decodes straight out of the mapped region
+            IntStream.range(0, count).parallel().forEach(row -> {
+                int in = row * width * 3;
+                int out = base + row * width;
+                for (int i = 0; i < width; i++, in += 3) {
+                    dest[out + i] = RGB.pack(buf.get(in), buf.get(in + 1), buf.get(in + 2));
+                }
+            });
+        }
+    }
+
+    // Decode the pixels inside region into dest, one row of region after another. Each
+    // mapping starts at the region's first pixel and ends at its last, so the columns
+    // either side of it are only mapped where they lie between two of its rows.
+    public static void readRegion(FileChannel channel, PPMHeader header, Region region, int[] dest) throws IOException {
+        int step = rowsPerMapping(header);
+        long rowBytes = header.rowBytes();
+        int width = region.width;
+        if (width == 0)
+            return;
+        for (int start = 0; start < region.height; start += step) {
+            int count = Math.min(step, region.height - start);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                    header.rowOffset(region.y + start) + region.x * 3L, (count - 1) * rowBytes + width * 3L);
+            int base = start * width;
+            IntStream.range(0, count).parallel().forEach(row -> {
+                int in = (int) (row * rowBytes);
+                int out = base + row * width;
+                for (int i = 0; i < width; i++, in += 3) {
+                    dest[out + i] = RGB.pack(buf.get(in), buf.get(in + 1), buf.get(in + 2));
+                }
+            });
+        }
+    }
+
+    // encode rows [firstRow, firstRow + rows) of the file from src starting at srcOffset
+    public static void writeRows(FileChannel channel, PPMHeader header, int firstRow, int rows,
+            int[] src, int srcOffset) throws IOException {
+        int step = rowsPerMapping(header);
+        int width = header.width;
+        for (int start = 0; start < rows; start += step) {
+            int count = Math.min(step, rows - start);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE,
+                    header.rowOffset(firstRow + start), count * header.rowBytes());
+            int base = srcOffset + start * width;
+            IntStream.range(0, count).parallel().forEach(row -> {
+                int out = row * width * 3;
+                int in = base + row * width;
+                for (int i = 0; i < width; i++, out += 3) {
+                    int pix = src[in + i];
+                    buf.put(out, (byte) RGB.red(pix));
+                    buf.put(out + 1, (byte) RGB.green(pix));
+                    buf.put(out + 2, (byte) RGB.blue(pix));
+                }
+            });
+        }
+    }
+}
+
+// The header of a tiled image file, a lossless compressed alternative to P6 that is
+// laid out as
+//     magic, width, height, maxColorVal, tileRows, tileCount   (ints)
+//     offset (long) and length (int) of each tile               (the index)
+//     the tiles
+// A tile holds tileRows rows of the image (fewer for the last one) and is compressed on
+// its own, so tiles can be encoded and decoded in parallel and any band of rows can be
+// read without touching the tiles outside it.
+class TiledHeader {
+    protected static final int MAGIC = 0x50544931; // "PTI1"
+    protected static final int FIXED_BYTES = 6 * 4;
+    protected static final int INDEX_ENTRY_BYTES = 8 + 4;
+
+    protected final int width, height, maxColorVal, tileRows;
+    protected final long[] offsets;
+    protected final int[] lengths;
+
+    public TiledHeader(int width, int height, int maxColorVal, int tileRows) {
+        this.width = width;
+        this.height = height;
+        this.maxColorVal = maxColorVal;
+        this.tileRows = tileRows;
+        int tiles = (height + tileRows - 1) / tileRows;
+        offsets = new long[tiles];
+        lengths = new int[tiles];
+    }
+
+    public int tileCount() { return offsets.length; }
+
+    public int firstRow(int tile) { return tile * tileRows; }
+
+    public int rows(int tile) { return Math.min(tileRows, height - firstRow(tile)); }
+
+    public int byteSize() { return FIXED_BYTES + tileCount() * INDEX_ENTRY_BYTES; }
+
+    public ByteBuffer toBytes() {
+        ByteBuffer buf = ByteBuffer.allocate(byteSize());
+        buf.putInt(MAGIC).putInt(width).putInt(height).putInt(maxColorVal).putInt(tileRows).putInt(tileCount());
+        for (int i = 0; i < tileCount(); i++)
+            buf.putLong(offsets[i]).putInt(lengths[i]);
+        buf.flip();
+        return buf;
+    }
+
+    public static TiledHeader read(FileChannel channel) throws IOException {
+        ByteBuffer fixed = ByteBuffer.allocate(FIXED_BYTES);
+        TiledIO.readFully(channel, fixed, 0);
+        if (fixed.getInt() != MAGIC)
+            throw new IOException("not a tiled image file");
+        int width = fixed.getInt();
+        int height = fixed.getInt();
+        int max = fixed.getInt();
+        int tileRows = fixed.getInt();
+        int tiles = fixed.getInt();
+        if (width <= 0 || height <= 0 || tileRows <= 0 || (long) width * height > Integer.MAX_VALUE)
+            throw new IOException("bad tiled image dimensions " + width + "x" + height);
+        if (max <= 0 || max > 255)
+            throw new IOException("unsupported max color value " + max);
+        TiledHeader header = new TiledHeader(width, height, max, tileRows);
+        if (tiles != header.tileCount())
+            throw new IOException("expected " + header.tileCount() + " tiles but the index has " + tiles);
+        ByteBuffer index = ByteBuffer.allocate(tiles * INDEX_ENTRY_BYTES);
+        TiledIO.readFully(channel, index, FIXED_BYTES);
+        long size = channel.size();
+        for (int i = 0; i < tiles; i++) {
+            header.offsets[i] = index.getLong();
+            header.lengths[i] = index.getInt();
+            if (header.offsets[i] < header.byteSize() || header.lengths[i] < 0
+                    || header.offsets[i] + header.lengths[i] > size)
+                throw new IOException("truncated tiled image file: tile " + i + " is out of bounds");
+        }
+        return header;
+    }
+}
+
+// Reads and writes tiled image files. Each tile is stored as its predictor followed by
+// the residuals of its pixels, compressed with Deflater. The red and blue residuals are
+// stored less the green one, since the channels tend to change together (and in a grey
+// image are identical). The predictor is chosen per tile, whichever of these leaves the
+// smaller residuals:
+//     DELTA, the pixel to the left
+//     PAETH, whichever of left, above and above-left is closest to left + above - above-left, as in PNG
+// Neighbours outside the tile count as 0, so a tile never depends on another.
+class TiledIO {
+    protected static final int DEFAULT_TILE_ROWS = 64;
+    protected static final byte DELTA = 0, PAETH = 1;
+
+    public static void write(PPMImage image, String fname) throws IOException {
+        write(image, fname, DEFAULT_TILE_ROWS, ForkJoinPool.commonPool());
+    }
+
+    public static void write(PPMImage image, String fname, int tileRows, ForkJoinPool pool) throws IOException {
+        if (tileRows <= 0)
+            throw new IllegalArgumentException("tile rows must be positive");
+        try (Trace trace = Instrumentation.begin("writeTiled", pool)) {
+            TiledHeader header = new TiledHeader(image.width, image.height, image.maxColorVal, tileRows);
+            byte[][] tiles = new byte[header.tileCount()][];
+            pool.invoke(new TileTask(0, tiles.length, tile ->
+                    tiles[tile] = encodeTile(image.pixels, image.width, header.firstRow(tile), header.rows(tile))));
+            trace.phase("encode");
+            long offset = header.byteSize();
+            for (int i = 0; i < tiles.length; i++) {
+                header.offsets[i] = offset;
+                header.lengths[i] = tiles[i].length;
+                offset += tiles[i].length;
+            }
+            try (FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeFully(channel, header.toBytes(), 0);
+                for (int i = 0; i < tiles.length; i++)
+                    writeFully(channel, ByteBuffer.wrap(tiles[i]), header.offsets[i]);
+            }
+            trace.phase("write");
+            trace.wrote(offset);
+            trace.end(image.pixels.length);
+        }
+    }
+
+    public static PPMImage read(String fname) throws IOException {
+        return read(fname, ForkJoinPool.commonPool());
+    }
+
+    public static PPMImage read(String fname, ForkJoinPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ)) {
+            TiledHeader header = TiledHeader.read(channel);
+            return new PPMImage(header.width, header.height, header.maxColorVal,
+                    readRows(channel, header, 0, header.height, pool));
+        }
+    }
+
+    // Read rows [firstRow, firstRow + rows) of the image as an image of their own, decoding
+    // only the tiles that overlap them
+    public static PPMImage readRows(String fname, int firstRow, int rows, ForkJoinPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ)) {
+            TiledHeader header = TiledHeader.read(channel);
+            if (firstRow < 0 || rows < 0 || firstRow + rows > header.height)
+                throw new IllegalArgumentException("rows " + firstRow + "+" + rows + " are outside the image");
+            return new PPMImage(header.width, rows, header.maxColorVal, readRows(channel, header, firstRow, rows, pool));
+        }
+    }
+
+    // Read only the pixels inside region. Tiles span the full width of the image, so the
+    // tiles that overlap its rows are decoded in full and the columns outside it dropped.
+    public static PPMImage readRegion(String fname, Region region, ForkJoinPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ)) {
+            TiledHeader header = TiledHeader.read(channel);
+            region.checkWithin(header.width, header.height);
+            return new PPMImage(header.width, region.height, header.maxColorVal,
+                    readRows(channel, header, region.y, region.height, pool))
+                .crop(new Region(region.x, 0, region.width, region.height));
+        }
+    }
+
+    // each tile is read with a positional read, so the tiles are fetched as well as decoded in parallel
+    protected static int[] readRows(FileChannel channel, TiledHeader header, int firstRow, int rows, ForkJoinPool pool)
+            throws IOException {
+        try (Trace trace = Instrumentation.begin("readTiled", pool)) {
+            int width = header.width;
+            int[] dest = new int[rows * width];
+            int firstTile = firstRow / header.tileRows;
+            int endTile = rows == 0 ? firstTile : (firstRow + rows - 1) / header.tileRows + 1;
+            LongAdder bytesRead = new LongAdder();
+            try {
+                pool.invoke(new TileTask(firstTile, endTile, tile -> {
+                    try {
+                        ByteBuffer data = ByteBuffer.allocate(header.lengths[tile]);
+                        readFully(channel, data, header.offsets[tile]);
+                        bytesRead.add(header.lengths[tile]);
+                        int tileFirst = header.firstRow(tile);
+                        int tileRows = header.rows(tile);
+                        int[] pixels = new int[tileRows * width];
+                        decodeTile(data.array(), pixels, width, tileRows);
+                        // copy out only the rows of the tile that were asked for
+                        int from = Math.max(firstRow, tileFirst);
+                        int to = Math.min(firstRow + rows, tileFirst + tileRows);
+                        System.arraycopy(pixels, (from - tileFirst) * width, dest, (from - firstRow) * width, (to - from) * width);
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            trace.read(bytesRead.sum());
+            trace.end(dest.length);
+            return dest;
+        }
+    }
+
+    protected static byte[] encodeTile(int[] pixels, int width, int firstRow, int rows) {
+        int start = firstRow * width;
+        int count = rows * width;
+        byte predictor = residualCost(pixels, start, width, count, DELTA) <= residualCost(pixels, start, width, count, PAETH)
+            ? DELTA : PAETH;
+        byte[] raw = new byte[1 + count * 3];
+        raw[0] = predictor;
+        for (int i = 0, out = 1; i < count; i++, out += 3) {
+            int pix = pixels[start + i];
+            int r = RGB.red(pix) - predict(pixels, start, width, i, 16, predictor);
+            int g = RGB.green(pix) - predict(pixels, start, width, i, 8, predictor);
+            int b = RGB.blue(pix) - predict(pixels, start, width, i, 0, predictor);
+            raw[out] = (byte) (r - g);
+            raw[out + 1] = (byte) g;
+            raw[out + 2] = (byte) (b - g);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setStrategy(Deflater.FILTERED);
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] buf = new byte[1 << 16];
+            while (!deflater.finished())
+                out.write(buf, 0, deflater.deflate(buf));
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    // decode a tile of rows rows into dest, which it fills from index 0
+    protected static void decodeTile(byte[] data, int[] dest, int width, int rows) throws IOException {
+        int count = rows * width;
+        byte[] raw = new byte[1 + count * 3];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int got = inflater.inflate(raw, n, raw.length - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += got;
+            }
+            if (n != raw.length)
+                throw new IOException("corrupt tile: expected " + raw.length + " bytes but decoded " + n);
+        }
+        catch (DataFormatException e) {
+            throw new IOException("corrupt tile", e);
+        }
+        finally {
+            inflater.end();
+        }
+        byte predictor = raw[0];
+        if (predictor != DELTA && predictor != PAETH)
+            throw new IOException("corrupt tile: unknown predictor " + predictor);
+        // pixels are decoded in order, so every neighbour a prediction reads is already in dest
+        for (int i = 0, in = 1; i < count; i++, in += 3) {
+            int g = raw[in + 1];
+            dest[i] = RGB.pack(raw[in] + g + predict(dest, 0, width, i, 16, predictor),
+                    g + predict(dest, 0, width, i, 8, predictor),
+                    raw[in + 2] + g + predict(dest, 0, width, i, 0, predictor));
+        }
+    }
+
+    // the prediction for the channel at shift of pixel i of the tile starting at start
+    private static int predict(int[] pixels, int start, int width, int i, int shift, byte predictor) {
+        int x = i % width;
+        int left = x > 0 ? (pixels[start + i - 1] >> shift) & 0xff : 0;
+        if (predictor == DELTA)
+            return left;
+        int above = i >= width ? (pixels[start + i - width] >> shift) & 0xff : 0;
+        int aboveLeft = x > 0 && i >= width ? (pixels[start + i - width - 1] >> shift) & 0xff : 0;
+        int p = left + above - aboveLeft;
+        int pa = Math.abs(p - left), pb = Math.abs(p - above), pc = Math.abs(p - aboveLeft);
+        if (pa <= pb && pa <= pc)
+            return left;
+        return pb <= pc ? above : aboveLeft;
+    }
+
+    // the sum of the residuals as signed bytes, a cheap estimate of how well they will compress
+    private static long residualCost(int[] pixels, int start, int width, int count, byte predictor) {
+        long cost = 0;
+        for (int i = 0; i < count; i++) {
+            int pix = pixels[start + i];
+            for (int shift = 16; shift >= 0; shift -= 8)
+                cost += Math.abs((byte) (((pix >> shift) & 0xff) - predict(pixels, start, width, i, shift, predictor)));
+        }
+        return cost;
+    }
+
+    protected static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0)
+                throw new EOFException("unexpected end of file at " + (position + buf.position()));
+        }
+        buf.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        long start = position - buf.position();
+        while (buf.hasRemaining())
+            channel.write(buf, start + buf.position());
+    }
+}
+
+// runs work on each tile in [from, to), splitting the range in half until it is a single tile
+class TileTask extends RecursiveAction {
+    private final int from, to;
+    private final IntConsumer work;
+
+    public TileTask(int from, int to, IntConsumer work) {
+        this.from = from;
+        this.to = to;
+        this.work = work;
+    }
+
+    public void compute() {
+        if (to - from > 1) {
+            int mid = from + (to - from) / 2;
+            TileTask left = new TileTask(from, mid, work);
+            TileTask right = new TileTask(mid, to, work);
+            Instrumentation.forked();
+            right.fork();
+            left.compute();
+            right.join();
+        }
+        else if (to > from) {
+            work.accept(from);
+        }
+    }
+}
+
+class Helpers {
+    protected static void swapPixels(int[] pixels, int x, int y) {
+        int temp = pixels[x];
+        pixels[x] = pixels[y];
+        pixels[y] = temp;
+    }
+
+    protected static int negatePixel(int pix, int maxColorVal) {
+        return RGB.pack(maxColorVal - RGB.red(pix),
+                maxColorVal - RGB.green(pix),
+                maxColorVal - RGB.blue(pix));
+    }
+
+    protected static int greyscalePixel(int pix) {
+        int avg = (int) Math.round(.299 * RGB.red(pix) + .587 * RGB.green(pix) + .114 * RGB.blue(pix));
+        return RGB.pack(avg, avg, avg);
+    }
+
+    // Clamps value to range [min, max]
+    protected static int clamp(int cur, int min, int max) {
+        if (cur < min)
+            return min;
+        else if (cur > max)
+            return max;
+        return cur;
+    }
+
+    // Unpacks the pixels into one plane per channel
+    protected static void splitChannels(int[] pixels, float[] R, float[] G, float[] B) {
+        IntStream.range(0, pixels.length).parallel().forEach(i -> {
+            int pix = pixels[i];
+            R[i] = RGB.red(pix);
+            G[i] = RGB.green(pix);
+            B[i] = RGB.blue(pix);
+        });
+    }
+
+    // Applies given Gaussian filter to the dest (x, y)
+    protected static void applyGaussian(int[] source, int[] dest, double[][] filter, int x, int y, int width, int height) {
+        int mid = filter.length / 2;
+        double R = 0;
+        double G = 0;
+        double B = 0;
+
+        for (int i = 0; i < filter.length; i++) {
+            int clampX = clamp(x - (mid - i), 0, width - 1);
+            for (int j = 0; j < filter[i].length; j++) {
+                int clampY = clamp(y - (mid - j), 0, height - 1);
+                int pix = source[clampY * width + clampX];
+                R += filter[i][j] * RGB.red(pix);
+                G += filter[i][j] * RGB.green(pix);
+                B += filter[i][j] * RGB.blue(pix);
+            }
+        }
+
+        dest[y * width + x] = RGB.pack((int) Math.round(R), (int) Math.round(G), (int) Math.round(B));
+    }
+}
+
+// decides whether a fork/join task over a band of rows should split in two or do the work itself
+interface SplitPolicy {
+    boolean shouldSplit(int rows, int width);
+
+    // a policy sized for running total pixels of work, each costing about costPerPixel multiply-adds, on pool
+    static SplitPolicy adaptive(ForkJoinPool pool, long pixels, double costPerPixel) {
+        return new AdaptiveSplitPolicy(pool.getParallelism(), pixels, costPerPixel);
+    }
+}
+
+// split until a task has at most cutoff pixels, no matter the machine or the work per pixel
+class FixedCutoff implements SplitPolicy {
+    private final int cutoff;
+
+    public FixedCutoff(int cutoff) { this.cutoff = cutoff; }
+
+    public boolean shouldSplit(int rows, int width) {
+        return rows > 1 && rows * width > cutoff;
+    }
+}
+
+// Sizes leaves by work rather than by pixels. Large tasks always split until there are a
+// few leaves per worker, tasks too small to be worth a fork never split, and in between
+// a task only splits while its worker has no more than a few surplus queued tasks
+// waiting to be stolen.
+class AdaptiveSplitPolicy implements SplitPolicy {
+    // below this much work (in multiply-adds) a fork costs more than it saves
+    protected static final double MIN_LEAF_WORK = 1 << 15;
+    protected static final int LEAVES_PER_WORKER = 4;
+    protected static final int SURPLUS_THRESHOLD = 3;
+
+    private final double costPerPixel;
+    private final double maxLeafWork;
+
+    public AdaptiveSplitPolicy(int parallelism, long pixels, double costPerPixel) {
+        this.costPerPixel = costPerPixel;
+        this.maxLeafWork = Math.max(MIN_LEAF_WORK, pixels * costPerPixel / (parallelism * LEAVES_PER_WORKER));
+    }
+
+    public boolean shouldSplit(int rows, int width) {
+        if (rows <= 1)
+            return false;
+        double work = (double) rows * width * costPerPixel;
+        if (work <= MIN_LEAF_WORK)
+            return false;
+        if (work > maxLeafWork)
+            return true;
+        return ForkJoinTask.inForkJoinPool() && ForkJoinTask.getSurplusQueuedTaskCount() <= SURPLUS_THRESHOLD;
+    }
+}
+
+class MirrorTask extends RecursiveAction {
+    private final int[] pixels;
+    private final int width;
+    private final int minHeight;
+    private final int maxHeight;
+    private final SplitPolicy policy;
+    protected static final int SEQUENTIAL_CUTOFF = 25000;
+
+    public MirrorTask(int[] pixels, int width, int minHeight, int maxHeight) {
+        this(pixels, width, minHeight, maxHeight, new FixedCutoff(SEQUENTIAL_CUTOFF));
+    }
+
+    public MirrorTask(int[] pixels, int width, int minHeight, int maxHeight, SplitPolicy policy) {
+        this.pixels = pixels;
+        this.width = width;
+        this.minHeight = minHeight;
+        this.maxHeight = maxHeight;
+        this.policy = policy;
+    }
+
+    public void compute() {
+        // The policy decides how many pixels are processed in this thread
+        // Each thread will do a certain number of rows of the image
+        if (policy.shouldSplit(maxHeight - minHeight, width)) {
+            int mid = minHeight + (maxHeight - minHeight) / 2;
+            // The right side is processed in a forked task
+            MirrorTask left = new MirrorTask(pixels, width, minHeight, mid, policy);
+            MirrorTask right = new MirrorTask(pixels, width, mid, maxHeight, policy);
+            Instrumentation.forked();
+            right.fork();
+            left.compute();
+            right.join();
+        }
+        else {
+            for (int i = minHeight; i < maxHeight; i++) {
+                int left = i * width;
+                int right = ((i + 1) * width) - 1;
+                // Since we're mirroring the image, swap a column from the left half with one from the right half
+                // If we went past width/2, then we would mirror the image and then mirror it again, resulting in the original image
+                for (int j = 0; j < width/2; j++) {
+                    Helpers.swapPixels(pixels, left + j, right - j);
+                }
+            }
+        }
+    }
+}
+
+class GaussianTask extends RecursiveAction {
+    // either the packed source pixels, for the scalar per-pixel path, or its channel planes, for the tiled path
+    private final int[] source;
+    private final float[] R, G, B;
+    private final int[] dest;
+    private final double[][] filter;
+    private final int width;
+    private final int height;
+    private final int minHeight;
+    private final int maxHeight;
+    private final SplitPolicy policy;
+    protected static final int SEQUENTIAL_CUTOFF = 5000;
+
+    public GaussianTask(int[] source, int[] dest, double[][] filter, int width, int height, int minHeight, int maxHeight) {
+        this(source, dest, filter, width, height, minHeight, maxHeight, new FixedCutoff(SEQUENTIAL_CUTOFF));
+    }
+
+    public GaussianTask(int[] source, int[] dest, double[][] filter, int width, int height, int minHeight, int maxHeight,
+            SplitPolicy policy) {
+        this(source, null, null, null, dest, filter, width, height, minHeight, maxHeight, policy);
+    }
+
+    public GaussianTask(float[] R, float[] G, float[] B, int[] dest, double[][] filter, int width, int height,
+            int minHeight, int maxHeight, SplitPolicy policy) {
+        this(null, R, G, B, dest, filter, width, height, minHeight, maxHeight, policy);
+    }
+
+    private GaussianTask(int[] source, float[] R, float[] G, float[] B, int[] dest, double[][] filter, int width, int height,
+            int minHeight, int maxHeight, SplitPolicy policy) {
+        this.policy = policy;
+        this.source = source;
+        this.R = R;
+        this.G = G;
+        this.B = B;
+        this.dest = dest;
+        this.filter = filter;
+        this.width = width;
+        this.height = height;
+        this.minHeight = minHeight;
+        this.maxHeight = maxHeight;
+    }
+
+    public void compute() {
+        // Same idea as MirrorTask
+        if (policy.shouldSplit(maxHeight - minHeight, width)) {
+            int mid = minHeight + (maxHeight - minHeight) / 2;
+            GaussianTask left = new GaussianTask(source, R, G, B, dest, filter, width, height, minHeight, mid, policy);
+            GaussianTask right = new GaussianTask(source, R, G, B, dest, filter, width, height, mid, maxHeight, policy);
+            Instrumentation.forked();
+            right.fork();
+            left.compute();
+            right.join();
+        }
+        else if (source == null) {
+            Convolution.convolveRows(R, G, B, dest, filter, width, height, minHeight, maxHeight);
+        }
+        else {
+            for (int i = minHeight; i < maxHeight; i++) {
+                for (int j = 0; j < width; j++) {
+                    Helpers.applyGaussian(source, dest, filter, j, i, width, height);
+                }
+            }
+        }
+    }
+}
+
+// A 2D convolution over channel planes that works on tiles of output rows. Each source
+// row is read once per tile, while it is in cache, and added into the accumulators of
+// every output row in the tile that it contributes to. Columns at least a radius away
+// from the edges need no clamping, so the inner loop is a contiguous multiply-add along
+// a row that the JIT can vectorise; only the columns at either edge take the clamped path.
+class Convolution {
+    protected static final int TILE_ROWS = 8;
+
+    // convolve output rows [minRow, maxRow) of the image into dest
+    public static void convolveRows(float[] R, float[] G, float[] B, int[] dest, double[][] filter,
+            int width, int height, int minRow, int maxRow) {
+        int mid = filter.length / 2;
+        int capacity = Math.min(TILE_ROWS, maxRow - minRow) * width;
+        double[] accR = new double[capacity];
+        double[] accG = new double[capacity];
+        double[] accB = new double[capacity];
+        for (int tile = minRow; tile < maxRow; tile += TILE_ROWS) {
+            int rows = Math.min(TILE_ROWS, maxRow - tile);
+            Arrays.fill(accR, 0);
+            Arrays.fill(accG, 0);
+            Arrays.fill(accB, 0);
+            // every source row that any output row of the tile depends on, clamped at the top and bottom
+            for (int s = tile - mid; s < tile + rows + mid; s++) {
+                int src = Helpers.clamp(s, 0, height - 1) * width;
+                int first = Math.max(0, s - mid - tile);
+                int last = Math.min(rows - 1, s + mid - tile);
+                for (int t = first; t <= last; t++) {
+                    int j = s - (tile + t) + mid;
+                    accumulateRow(R, src, accR, t * width, filter, j, width);
+                    accumulateRow(G, src, accG, t * width, filter, j, width);
+                    accumulateRow(B, src, accB, t * width, filter, j, width);
+                }
+            }
+            int out = tile * width;
+            for (int i = 0; i < rows * width; i++) {
+                dest[out + i] = RGB.pack((int) Math.round(accR[i]), (int) Math.round(accG[i]), (int) Math.round(accB[i]));
+            }
+        }
+    }
+
+    // add the source row starting at src, weighted by row j of the filter, into the accumulators starting at out
+    private static void accumulateRow(float[] plane, int src, double[] acc, int out, double[][] filter, int j, int width) {
+        int mid = filter.length / 2;
+        int lo = Math.min(mid, width);
+        int hi = Math.max(lo, width - mid);
+        for (int i = 0; i < filter.length; i++) {
+            double w = filter[i][j];
+            int shift = src + i - mid;
+            for (int x = lo; x < hi; x++)
+                acc[out + x] += w * plane[shift + x];
+            for (int x = 0; x < lo; x++)
+                acc[out + x] += w * plane[src + Helpers.clamp(x + i - mid, 0, width - 1)];
+            for (int x = hi; x < width; x++)
+                acc[out + x] += w * plane[src + Helpers.clamp(x + i - mid, 0, width - 1)];
+        }
+    }
+}
+
+class HorizontalGaussianTask extends RecursiveAction {
+    private final int[] source;
+    private final float[] R, G, B;
+    private final double[] kernel;
+    private final int width;
+    private final int minHeight;
+    private final int maxHeight;
+    private final SplitPolicy policy;
+
+    public HorizontalGaussianTask(int[] source, float[] R, float[] G, float[] B, double[] kernel, int width, int minHeight, int maxHeight) {
+        this(source, R, G, B, kernel, width, minHeight, maxHeight, new FixedCutoff(GaussianTask.SEQUENTIAL_CUTOFF));
+    }
+
+    public HorizontalGaussianTask(int[] source, float[] R, float[] G, float[] B, double[] kernel, int width, int minHeight, int maxHeight,
+            SplitPolicy policy) {
+        this.policy = policy;
+        this.source = source;
+        this.R = R;
+        this.G = G;
+        this.B = B;
+        this.kernel = kernel;
+        this.width = width;
+        this.minHeight = minHeight;
+        this.maxHeight = maxHeight;
+    }
+
+    public void compute() {
+        // Same idea as GaussianTask, but each row only reads from itself
+        if (policy.shouldSplit(maxHeight - minHeight, width)) {
+            int mid = minHeight + (maxHeight - minHeight) / 2;
+            HorizontalGaussianTask left = new HorizontalGaussianTask(source, R, G, B, kernel, width, minHeight, mid, policy);
+            HorizontalGaussianTask right = new HorizontalGaussianTask(source, R, G, B, kernel, width, mid, maxHeight, policy);
+            Instrumentation.forked();
+            right.fork();
+            left.compute();
+            right.join();
+        }
+        else {
+            int mid = kernel.length / 2;
+            for (int i = minHeight; i < maxHeight; i++) {
+                int row = i * width;
+                for (int j = 0; j < width; j++) {
+                    double r = 0, g = 0, b = 0;
+                    for (int k = 0; k < kernel.length; k++) {
+                        int pix = source[row + Helpers.clamp(j - mid + k, 0, width - 1)];
+                        r += kernel[k] * RGB.red(pix);
+                        g += kernel[k] * RGB.green(pix);
+                        b += kernel[k] * RGB.blue(pix);
+                    }
+                    R[row + j] = (float) r;
+                    G[row + j] = (float) g;
+                    B[row + j] = (float) b;
+                }
+            }
+        }
+    }
+}
+
+class VerticalGaussianTask extends RecursiveAction {
+    private final float[] R, G, B;
+    private final int[] dest;
+    private final double[] kernel;
+    private final int width;
+    private final int height;
+    // the image rows held at index 0 of the planes and of dest, which only cover part of the image when blurring a strip
+    private final int sourceRow;
+    private final int destRow;
+    private final int minHeight;
+    private final int maxHeight;
+    private final SplitPolicy policy;
+
+    public VerticalGaussianTask(float[] R, float[] G, float[] B, int[] dest, double[] kernel, int width, int height, int minHeight, int maxHeight) {
+        this(R, G, B, dest, kernel, width, height, 0, 0, minHeight, maxHeight, new FixedCutoff(GaussianTask.SEQUENTIAL_CUTOFF));
+    }
+
+    public VerticalGaussianTask(float[] R, float[] G, float[] B, int[] dest, double[] kernel, int width, int height,
+            int sourceRow, int destRow, int minHeight, int maxHeight, SplitPolicy policy) {
+        this.policy = policy;
+        this.R = R;
+        this.G = G;
+        this.B = B;
+        this.dest = dest;
+        this.kernel = kernel;
+        this.width = width;
+        this.height = height;
+        this.sourceRow = sourceRow;
+        this.destRow = destRow;
+        this.minHeight = minHeight;
+        this.maxHeight = maxHeight;
+    }
+
+    public void compute() {
+        if (policy.shouldSplit(maxHeight - minHeight, width)) {
+            int mid = minHeight + (maxHeight - minHeight) / 2;
+            VerticalGaussianTask left = new VerticalGaussianTask(R, G, B, dest, kernel, width, height, sourceRow, destRow, minHeight, mid, policy);
+            VerticalGaussianTask right = new VerticalGaussianTask(R, G, B, dest, kernel, width, height, sourceRow, destRow, mid, maxHeight, policy);
+            Instrumentation.forked();
+            right.fork();
+            left.compute();
+            right.join();
+        }
+        else {
+            int mid = kernel.length / 2;
+            for (int i = minHeight; i < maxHeight; i++) {
+                for (int j = 0; j < width; j++) {
+                    double r = 0, g = 0, b = 0;
+                    for (int k = 0; k < kernel.length; k++) {
+                        int index = (Helpers.clamp(i - mid + k, 0, height - 1) - sourceRow) * width + j;
+                        r += kernel[k] * R[index];
+                        g += kernel[k] * G[index];
+                        b += kernel[k] * B[index];
+                    }
+                    dest[(i - destRow) * width + j] = RGB.pack((int) Math.round(r), (int) Math.round(g), (int) Math.round(b));
+                }
+            }
+        }
+    }
+}
+
+// Collects negate, greyscale and mirror steps and runs them as one composed per-pixel
+// function in a single parallel pass. Steps are simplified as they are added: a negate
+// or mirror cancels a directly preceding one, and a greyscale of an image that is
+// already grey is dropped. Mirroring only moves pixels, so it commutes with the rest.
+class FusedTransform {
+    enum Step { NEGATE, GREYSCALE }
+
+    private final List<Step> steps = new ArrayList<Step>();
+    private boolean mirrored = false;
+
+    public FusedTransform negate() {
+        if (!steps.isEmpty() && steps.get(steps.size() - 1) == Step.NEGATE)
+            steps.remove(steps.size() - 1);
+        else
+            steps.add(Step.NEGATE);
+        return this;
+    }
+
+    public FusedTransform greyscale() {
+        // negating a grey image leaves it grey, so any earlier greyscale makes this one a no-op
+        if (!steps.contains(Step.GREYSCALE))
+            steps.add(Step.GREYSCALE);
+        return this;
+    }
+
+    public FusedTransform mirrorImage() {
+        mirrored = !mirrored;
+        return this;
+    }
+
+    public List<Step> steps() { return Collections.unmodifiableList(steps); }
+
+    public boolean isMirrored() { return mirrored; }
+
+    public boolean isIdentity() { return steps.isEmpty() && !mirrored; }
+
+    // the composition of every point step, applied to one packed pixel
+    public IntUnaryOperator operator(int maxColorVal) {
+        IntUnaryOperator op = IntUnaryOperator.identity();
+        for (Step step : steps) {
+            if (step == Step.NEGATE)
+                op = op.andThen(pix -> Helpers.negatePixel(pix, maxColorVal));
+            else
+                op = op.andThen(Helpers::greyscalePixel);
+        }
+        return op;
+    }
+
+    public PPMImage apply(PPMImage image) {
+        try (Trace trace = Instrumentation.begin("fused", ForkJoinPool.commonPool())) {
+            int width = image.width;
+            int[] source = image.pixels;
+            int[] dest = new int[source.length];
+            IntUnaryOperator op = operator(image.maxColorVal);
+            // Split the image up by row, each output pixel is computed straight from its source pixel
+            IntStream.range(0, image.height).parallel().forEach(row -> {
+                int start = row * width;
+                if (mirrored) {
+                    int end = start + width - 1;
+                    for (int i = 0; i < width; i++)
+                        dest[start + i] = op.applyAsInt(source[end - i]);
+                }
+                else {
+                    for (int i = 0; i < width; i++)
+                        dest[start + i] = op.applyAsInt(source[start + i]);
+                }
+            });
+            trace.end(source.length);
+            return new PPMImage(image.width, image.height, image.maxColorVal, dest);
+        }
+    }
+
+    // apply to the first rows rows of pixels, overwriting them
+    protected void applyInPlace(int[] pixels, int width, int rows, int maxColorVal) {
+        if (isIdentity())
+            return;
+        IntUnaryOperator op = operator(maxColorVal);
+        IntStream.range(0, rows).parallel().forEach(row -> {
+            int left = row * width;
+            int right = left + width - 1;
+            if (mirrored) {
+                // swap from both ends, transforming as we go
+                for (; left < right; left++, right--) {
+                    int temp = pixels[left];
+                    pixels[left] = op.applyAsInt(pixels[right]);
+                    pixels[right] = op.applyAsInt(temp);
+                }
+                if (left == right)
+                    pixels[left] = op.applyAsInt(pixels[left]);
+            }
+            else {
+                for (; left <= right; left++)
+                    pixels[left] = op.applyAsInt(pixels[left]);
+            }
+        });
+    }
 }
 
+// the rows of an image currently held in memory by an ImagePipeline
+class Strip {
+    protected final int width, height, maxColorVal;
+    // pixels holds rows [firstRow, firstRow + rows) of the image, spare is the same size and free for a stage to write into
+    protected int[] pixels, spare;
+    protected float[] R, G, B;
+    protected int firstRow, rows;
 
-// an object representing a single PPM image
-class PPMImage {
-    protected int width, height, maxColorVal;
-    protected RGB[] pixels;
+    public Strip(PPMHeader header, int capacityRows) {
+        width = header.width;
+        height = header.height;
+        maxColorVal = header.maxColorVal;
+        int capacity = capacityRows * width;
+        pixels = new int[capacity];
+        spare = new int[capacity];
+    }
 
-    public PPMImage(int w, int h, int m, RGB[] p) {
-        width = w;
-        height = h;
-        maxColorVal = m;
-        pixels = p;
+    // float planes are only needed by blur stages, so allocate them the first time they are asked for
+    protected void ensurePlanes() {
+        if (R == null) {
+            R = new float[pixels.length];
+            G = new float[pixels.length];
+            B = new float[pixels.length];
+        }
     }
 
-    // parse a PPM image file named fname and produce a new PPMImage object
-    public PPMImage(String fname) 
-        throws FileNotFoundException, IOException {
-        FileInputStream is = new FileInputStream(fname);
-        BufferedReader br = new BufferedReader(new InputStreamReader(is));
-        br.readLine(); // read the P6
-        String[] dims = br.readLine().split(" "); // read width and height
-        int width = Integer.parseInt(dims[0]);
-        int height = Integer.parseInt(dims[1]);
-        int max = Integer.parseInt(br.readLine()); // read max color value
-        br.close();
-
-        is = new FileInputStream(fname);
-        // skip the first three lines
-        int newlines = 0;
-        while (newlines < 3) {
-            int b = is.read();
-            if (b == 10)
-                newlines++;
-        }
-
-        int MASK = 0xff;
-        int numpixels = width * height;
-        byte[] bytes = new byte[numpixels * 3];
-        is.read(bytes);
-        RGB[] pixels = new RGB[numpixels];
-        for (int i = 0; i < numpixels; i++) {
-            int offset = i * 3;
-            pixels[i] = new RGB(bytes[offset] & MASK, 
-                    bytes[offset+1] & MASK, 
-                    bytes[offset+2] & MASK);
-        }
-        is.close();
+    protected void swap(int newFirstRow, int newRows) {
+        int[] temp = pixels;
+        pixels = spare;
+        spare = temp;
+        firstRow = newFirstRow;
+        rows = newRows;
+    }
+}
 
-        this.width = width;
-        this.height = height;
-        this.maxColorVal = max;
-        this.pixels = pixels;
+// a single operation in an ImagePipeline
+interface PipelineStage {
+    // the number of rows above and below an output row that it depends on
+    int halo();
+    // transform the strip so that it holds rows [outFirst, outFirst + outRows)
+    void apply(Strip strip, int outFirst, int outRows);
+}
+
+// runs a run of consecutive point operations and mirrors as one pass over the strip
+class FusedStage implements PipelineStage {
+    protected final FusedTransform transform = new FusedTransform();
+
+    public int halo() { return 0; }
+    public void apply(Strip strip, int outFirst, int outRows) {
+        transform.applyInPlace(strip.pixels, strip.width, strip.rows, strip.maxColorVal);
     }
+}
 
-    // write a PPMImage object to a file named fname
-    public void toFile(String fname) throws IOException {
-        FileOutputStream os = new FileOutputStream(fname);
+class BlurStage implements PipelineStage {
+    private final double[] kernel;
 
-        String header = "P6\n" + width + " " + height + "\n" 
-            + maxColorVal + "\n";
-        os.write(header.getBytes());
+    public BlurStage(int radius, double sigma) {
+        kernel = Gaussian.gaussianKernel(radius, sigma);
+    }
 
-        int numpixels = width * height;
-        byte[] bytes = new byte[numpixels * 3];
-        int i = 0;
-        for (RGB rgb : pixels) {
-            bytes[i] = (byte) rgb.R;
-            bytes[i+1] = (byte) rgb.G;
-            bytes[i+2] = (byte) rgb.B;
-            i += 3;
-        }
-        os.write(bytes);
-        os.close();
+    public int halo() { return kernel.length / 2; }
+
+    public void apply(Strip strip, int outFirst, int outRows) {
+        strip.ensurePlanes();
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        pool.invoke(new HorizontalGaussianTask(strip.pixels, strip.R, strip.G, strip.B, kernel, strip.width, 0, strip.rows,
+                SplitPolicy.adaptive(pool, (long) strip.rows * strip.width, kernel.length)));
+        pool.invoke(new VerticalGaussianTask(strip.R, strip.G, strip.B, strip.spare, kernel, strip.width, strip.height,
+                strip.firstRow, outFirst, outFirst, outFirst + outRows,
+                SplitPolicy.adaptive(pool, (long) outRows * strip.width, kernel.length)));
+        strip.swap(outFirst, outRows);
     }
+}
 
-    // implement using Java 8 Streams
-    public PPMImage negate() {
-        // Split image by pixels
-        RGB[] newPixels = Arrays.stream(pixels).parallel()
-            .map(pix -> new RGB(maxColorVal - pix.R, maxColorVal - pix.G, maxColorVal - pix.B))
-            .toArray(RGB[]::new);
-        return new PPMImage(width, height, maxColorVal, newPixels);
+// A lazy chain of operations over a PPM file. Nothing happens until run, which streams
+// the file through the stages a strip of rows at a time, so memory use is bounded by
+// the strip size plus the rows of halo that the blur stages need, not by the image size.
+class ImagePipeline {
+    private final String source;
+    private final List<PipelineStage> stages = new ArrayList<PipelineStage>();
+    private int stripRows = 256;
+
+    private ImagePipeline(String source) { this.source = source; }
+
+    public static ImagePipeline from(String fname) { return new ImagePipeline(fname); }
+
+    public ImagePipeline negate() { fused().negate(); return this; }
+    public ImagePipeline greyscale() { fused().greyscale(); return this; }
+    public ImagePipeline mirrorImage() { fused().mirrorImage(); return this; }
+    public ImagePipeline gaussianBlur(int radius, double sigma) { return then(new BlurStage(radius, sigma)); }
+
+    // consecutive point operations are collected into a single stage
+    private FusedTransform fused() {
+        if (stages.isEmpty() || !(stages.get(stages.size() - 1) instanceof FusedStage))
+            stages.add(new FusedStage());
+        return ((FusedStage) stages.get(stages.size() - 1)).transform;
     }
 
-    // implement using Java 8 Streams
-    public PPMImage greyscale() {
-        // Split image by pixels
-        RGB[] newPixels = Arrays.stream(pixels).parallel()
-            .map(pix -> {
-                int avg = new Long(Math.round(.299 * pix.R + .587 * pix.G + .114 * pix.B)).intValue();
-                return new RGB(avg, avg, avg);
-            }).toArray(RGB[]::new);
-        return new PPMImage(width, height, maxColorVal, newPixels);
-    }    
+    public ImagePipeline then(PipelineStage stage) {
+        stages.add(stage);
+        return this;
+    }
 
-    // implement using Java's Fork/Join library
-    public PPMImage mirrorImage() {
-        PPMImage mirror = new PPMImage(width, height, maxColorVal, Arrays.copyOf(pixels, pixels.length));
-        new MirrorTask(mirror.pixels, width, 0, height).compute();
-        return mirror;
+    // the number of output rows produced per strip
+    public ImagePipeline stripRows(int rows) {
+        if (rows <= 0)
+            throw new IllegalArgumentException("strip rows must be positive");
+        stripRows = rows;
+        return this;
     }
 
-    // implement using Java 8 Streams
-    public PPMImage mirrorImage2() {
-        RGB[] mirror = Arrays.copyOf(pixels, pixels.length);
-        // Split up the image by row
-        IntStream.range(0, height).parallel().forEach(curHeight -> {
-            int left = curHeight * width;
-            int right = ((curHeight + 1) * width) - 1;
-            // Since we're mirroring the image, swap a column from the left half with one from the right half
-            // If we went past width/2, then we would mirror the image and then mirror it again, resulting in the original image
-            for (int i = 0; i < width/2; i++) {
-                Helpers.swapPixels(mirror, left + i, right - i);
+    public void run(String dest) throws IOException {
+        try (Trace trace = Instrumentation.begin("pipeline", ForkJoinPool.commonPool());
+                FileChannel in = FileChannel.open(Paths.get(source), StandardOpenOption.READ)) {
+            PPMHeader header = PPMIO.readHeader(in);
+            PPMHeader outHeader = new PPMHeader(header.width, header.height, header.maxColorVal);
+            int halo = 0;
+            for (PipelineStage stage : stages)
+                halo += stage.halo();
+            Strip strip = new Strip(header, Math.min(header.height, stripRows + 2 * halo));
+            int n = stages.size();
+            int[] firsts = new int[n + 1];
+            int[] lasts = new int[n + 1];
+            try (FileChannel out = PPMIO.create(dest, outHeader)) {
+                for (int start = 0; start < header.height; start += stripRows) {
+                    // Work backwards from the rows this strip outputs to the rows each stage needs as input
+                    firsts[n] = start;
+                    lasts[n] = Math.min(header.height, start + stripRows);
+                    for (int i = n - 1; i >= 0; i--) {
+                        int h = stages.get(i).halo();
+                        firsts[i] = Math.max(0, firsts[i + 1] - h);
+                        lasts[i] = Math.min(header.height, lasts[i + 1] + h);
+                    }
+                    strip.firstRow = firsts[0];
+                    strip.rows = lasts[0] - firsts[0];
+                    trace.phase("plan");
+                    PPMIO.readRows(in, header, strip.firstRow, strip.rows, strip.pixels, 0);
+                    trace.read((long) strip.rows * header.rowBytes());
+                    trace.phase("read");
+                    for (int i = 0; i < n; i++) {
+                        stages.get(i).apply(strip, firsts[i + 1], lasts[i + 1] - firsts[i + 1]);
+                    }
+                    trace.phase("transform");
+                    PPMIO.writeRows(out, outHeader, start, lasts[n] - start, strip.pixels, 0);
+                    trace.wrote((long) (lasts[n] - start) * outHeader.rowBytes());
+                    trace.phase("write");
+                }
             }
-        });
-        return new PPMImage(width, height, maxColorVal, mirror);
+            trace.end((long) header.width * header.height);
+        }
     }
+}
 
-    // implement using Java's Fork/Join library
-    public PPMImage gaussianBlur(int radius, double sigma) {
-        RGB[] dest = new RGB[pixels.length];
-        // Allocate and zero out the pixels of the blurred image
-        for (int i = 0; i < dest.length; i++) {
-            dest[i] = new RGB(0, 0, 0);
+// A chain of successively half-size copies of an image. Level 0 is the image itself and
+// each level after it is the one before low-pass filtered with the 5-tap binomial
+// [1 4 6 4 1]/16 in both directions, so it does not alias, and then every other row and
+// column dropped. Pixel i of level L sits over pixel i * 2^L of level 0.
+//
+// A Gaussian blur with a large sigma only keeps detail that a coarse level still has, so
+// gaussianBlur runs a much smaller blur on the coarsest level that can hold it and scales
+// the result back up. Variances of successive filters add, so the blur at that level is
+// chosen to make up whatever the anti-alias filters and the upsampling leave of sigma^2.
+class ImagePyramid {
+    // levels stop once either side would be smaller than this
+    protected static final int MIN_LEVEL_SIZE = 8;
+    // a blur at a coarse level must still have at least this sigma, in that level's pixels,
+    // or too much of it comes from the fixed filters and the result drifts from the true blur
+    protected static final double MIN_LEVEL_SIGMA = 2.0;
+
+    private final List<PPMImage> levels;
+    // the original image's modCount when the pyramid was built
+    private final int modCount;
+
+    private ImagePyramid(List<PPMImage> levels, int modCount) {
+        this.levels = levels;
+        this.modCount = modCount;
+    }
+
+    public static ImagePyramid build(PPMImage image) {
+        return build(image, ForkJoinPool.commonPool());
+    }
+
+    // each level depends on the one before, so levels are built one after another, each in parallel on pool
+    public static ImagePyramid build(PPMImage image, ForkJoinPool pool) {
+        try (Trace trace = Instrumentation.begin("pyramid", pool)) {
+            int modCount = image.modCount;
+            List<PPMImage> levels = new ArrayList<PPMImage>();
+            levels.add(image);
+            long pixels = 0;
+            PPMImage level = image;
+            while (DownsampleTask.coarseSize(level.width) >= MIN_LEVEL_SIZE
+                    && DownsampleTask.coarseSize(level.height) >= MIN_LEVEL_SIZE) {
+                level = downsample(level, pool);
+                levels.add(level);
+                pixels += level.pixels.length;
+            }
+            trace.end(pixels);
+            return new ImagePyramid(Collections.unmodifiableList(levels), modCount);
         }
-        double[][] filter = Gaussian.gaussianFilter(radius, sigma);
-        new GaussianTask(this.pixels, dest, filter, width, height, 0, height).compute();
-        return new PPMImage(width, height, maxColorVal, dest);
     }
-}
 
-class Helpers {
-    protected static void swapPixels(RGB[] pixels, int x, int y) {
-        RGB temp = pixels[x];
-        pixels[x] = pixels[y];
-        pixels[y] = temp;
+    protected static PPMImage downsample(PPMImage image, ForkJoinPool pool) {
+        int width = DownsampleTask.coarseSize(image.width);
+        int height = DownsampleTask.coarseSize(image.height);
+        int[] dest = new int[width * height];
+        pool.invoke(new DownsampleTask(image.pixels, image.width, image.height, dest, 0, height,
+                SplitPolicy.adaptive(pool, dest.length, 4 * DownsampleTask.TAPS)));
+        return new PPMImage(width, height, image.maxColorVal, dest);
     }
 
-    // Clamps value to range [min, max]
-    protected static int clamp(int cur, int min, int max) {
-        if (cur < min)
-            return min;
-        else if (cur > max)
-            return max;
-        return cur;
+    public int levelCount() { return levels.size(); }
+
+    // false once setPixel has changed the original image since the pyramid was built
+    public boolean isCurrent() { return levels.get(0).modCount == modCount; }
+
+    public PPMImage level(int level) { return levels.get(level); }
+
+    // the bytes held by every level, including the original image
+    public long byteSize() {
+        long bytes = 0;
+        for (PPMImage level : levels)
+            bytes += 4L * level.pixels.length;
+        return bytes;
     }
 
-    // Applies given Gaussian filter to the dest (x, y)
-    protected static void applyGaussian(RGB[] source, RGB[] dest, double[][] filter, int x, int y, int width, int height) {
-        int mid = filter.length / 2;
-        double R = 0;
-        double G = 0;
-        double B = 0;
+    // the variance, in level 0 pixels, that reaching level and coming back from it adds on
+    // its own: (4^level - 1) / 3 from the anti-alias filters, whose variance is 1 in the
+    // pixels of the level they filter, and scale^2 / 6 from the bilinear upsampling
+    protected static double fixedVariance(int level) {
+        if (level == 0)
+            return 0;
+        double scale = 1 << level;
+        return (scale * scale - 1) / 3 + scale * scale / 6;
+    }
 
-        for (int i = 0; i < filter.length; i++) {
-            int clampX = clamp(x - (mid - i), 0, width - 1);
-            for (int j = 0; j < filter[i].length; j++) {
-                int clampY = clamp(y - (mid - j), 0, height - 1);
-                R += filter[i][j] * source[clampY * width + clampX].R;
-                G += filter[i][j] * source[clampY * width + clampX].G;
-                B += filter[i][j] * source[clampY * width + clampX].B;
-            }
+    // the sigma, in its own pixels, that a blur at level needs for an overall sigma, or NaN if it cannot reach it
+    protected static double levelSigma(double sigma, int level) {
+        double scale = 1 << level;
+        double variance = sigma * sigma - fixedVariance(level);
+        return variance > 0 ? Math.sqrt(variance) / scale : Double.NaN;
+    }
+
+    // the coarsest level that can blur with sigma while keeping at least MIN_LEVEL_SIGMA of its own
+    public int levelFor(double sigma) {
+        int best = 0;
+        for (int level = 1; level < levels.size(); level++) {
+            if (levelSigma(sigma, level) >= MIN_LEVEL_SIGMA)
+                best = level;
         }
+        return best;
+    }
+
+    public PPMImage gaussianBlur(int radius, double sigma) {
+        return gaussianBlur(radius, sigma, ForkJoinPool.commonPool());
+    }
 
-        dest[y * width + x].R = new Long(Math.round(R)).intValue();
-        dest[y * width + x].G = new Long(Math.round(G)).intValue();
-        dest[y * width + x].B = new Long(Math.round(B)).intValue();
+    // An approximation of level(0).gaussianBlur(radius, sigma, pool) that is exact when
+    // sigma is too small for any coarse level. More than sigma from the edges each channel
+    // is within 4 of the true blur. Nearer the edges it can be off by 20 or more where the
+    // image changes sharply, since the coarse blur clamps a level that has already been
+    // filtered, where the true blur clamps the original pixels.
+    public PPMImage gaussianBlur(int radius, double sigma, ForkJoinPool pool) {
+        int level = levelFor(sigma);
+        if (level == 0)
+            return levels.get(0).gaussianBlur(radius, sigma, pool);
+        try (Trace trace = Instrumentation.begin("pyramidBlur", pool)) {
+            int scale = 1 << level;
+            PPMImage coarse = levels.get(level).gaussianBlur(Math.max(1, (radius + scale - 1) / scale),
+                    levelSigma(sigma, level), pool);
+            trace.phase("blur");
+            PPMImage base = levels.get(0);
+            int[] dest = new int[base.pixels.length];
+            pool.invoke(new UpsampleTask(coarse.pixels, coarse.width, coarse.height, dest, base.width, scale, 0, base.height,
+                    SplitPolicy.adaptive(pool, dest.length, 4)));
+            trace.phase("upsample");
+            trace.end(dest.length);
+            return new PPMImage(base.width, base.height, base.maxColorVal, dest);
+        }
     }
 }
 
-class MirrorTask extends RecursiveAction {
-    private final RGB[] pixels;
-    private final int width;
-    private final int minHeight;
-    private final int maxHeight;
-    private final int SEQUENTIAL_CUTOFF = 25000;
+// Downsamples output rows [minHeight, maxHeight) by 2. Each output row filters the five
+// source rows around it down the columns, and then filters that row along itself at every
+// other column.
+class DownsampleTask extends RecursiveAction {
+    protected static final int TAPS = 5;
+    private static final float[] WEIGHTS = { 1 / 16f, 4 / 16f, 6 / 16f, 4 / 16f, 1 / 16f };
 
-    public MirrorTask(RGB[] pixels, int width, int minHeight, int maxHeight) {
-        this.pixels = pixels;
+    private final int[] source;
+    private final int width, height;
+    private final int[] dest;
+    private final int minHeight, maxHeight;
+    private final SplitPolicy policy;
+
+    public DownsampleTask(int[] source, int width, int height, int[] dest, int minHeight, int maxHeight, SplitPolicy policy) {
+        this.source = source;
         this.width = width;
+        this.height = height;
+        this.dest = dest;
         this.minHeight = minHeight;
         this.maxHeight = maxHeight;
+        this.policy = policy;
     }
 
+    // Output pixel j sits on source pixel 2j, and there is always one past the last source
+    // pixel when size is even, so every level reaches the far edges. Stopping a pixel short
+    // would make the coarse blur clamp too soon and the upsample extend the last sample flat.
+    protected static int coarseSize(int size) { return size / 2 + 1; }
+
     public void compute() {
-        // Only want to process ceil(num_pixels/SEQUENTIAL_CUTOFF) * SEQUENTIAL_CUTOFF or less pixels in this thread
-        // Each thread will do a certain number of rows of the image
-        if ((maxHeight - minHeight) * width > SEQUENTIAL_CUTOFF) {
+        int destWidth = coarseSize(width);
+        if (policy.shouldSplit(maxHeight - minHeight, destWidth)) {
             int mid = minHeight + (maxHeight - minHeight) / 2;
-            // The right side is processed in a forked task
-            MirrorTask left = new MirrorTask(pixels, width, minHeight, mid);
-            MirrorTask right = new MirrorTask(pixels, width, mid, maxHeight);
+            DownsampleTask left = new DownsampleTask(source, width, height, dest, minHeight, mid, policy);
+            DownsampleTask right = new DownsampleTask(source, width, height, dest, mid, maxHeight, policy);
+            Instrumentation.forked();
             right.fork();
             left.compute();
             right.join();
         }
         else {
+            int half = TAPS / 2;
+            float[] R = new float[width];
+            float[] G = new float[width];
+            float[] B = new float[width];
             for (int i = minHeight; i < maxHeight; i++) {
-                int left = i * width;
-                int right = ((i + 1) * width) - 1;
-                // Since we're mirroring the image, swap a column from the left half with one from the right half
-                // If we went past width/2, then we would mirror the image and then mirror it again, resulting in the original image
-                for (int j = 0; j < width/2; j++) {
-                    Helpers.swapPixels(pixels, left + j, right - j);
+                Arrays.fill(R, 0);
+                Arrays.fill(G, 0);
+                Arrays.fill(B, 0);
+                for (int k = 0; k < TAPS; k++) {
+                    int row = Helpers.clamp(2 * i - half + k, 0, height - 1) * width;
+                    float w = WEIGHTS[k];
+                    for (int x = 0; x < width; x++) {
+                        int pix = source[row + x];
+                        R[x] += w * RGB.red(pix);
+                        G[x] += w * RGB.green(pix);
+                        B[x] += w * RGB.blue(pix);
+                    }
+                }
+                int out = i * destWidth;
+                for (int j = 0; j < destWidth; j++) {
+                    float r = 0, g = 0, b = 0;
+                    for (int k = 0; k < TAPS; k++) {
+                        int x = Helpers.clamp(2 * j - half + k, 0, width - 1);
+                        r += WEIGHTS[k] * R[x];
+                        g += WEIGHTS[k] * G[x];
+                        b += WEIGHTS[k] * B[x];
+                    }
+                    dest[out + j] = RGB.pack(Math.round(r), Math.round(g), Math.round(b));
                 }
             }
         }
     }
 }
 
-class GaussianTask extends RecursiveAction {
-    private final RGB[] source;
-    private final RGB[] dest;
-    private final double[][] filter;
-    private final int width;
-    private final int height;
-    private final int minHeight;
-    private final int maxHeight;
-    private final int SEQUENTIAL_CUTOFF = 5000;
+// Scales a pyramid level back up by scale with bilinear interpolation, writing output rows
+// [minHeight, maxHeight). Output pixel x reads level position x / scale. Every level reaches
+// the far edges, so the clamps only stand in for the neighbour of a last sample that is hit
+// exactly, which has no weight.
+class UpsampleTask extends RecursiveAction {
+    private final int[] source;
+    private final int sourceWidth, sourceHeight;
+    private final int[] dest;
+    private final int width, scale;
+    private final int minHeight, maxHeight;
+    private final SplitPolicy policy;
 
-    public GaussianTask(RGB[] source, RGB[] dest, double[][] filter, int width, int height, int minHeight, int maxHeight) {
+    public UpsampleTask(int[] source, int sourceWidth, int sourceHeight, int[] dest, int width, int scale,
+            int minHeight, int maxHeight, SplitPolicy policy) {
         this.source = source;
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
         this.dest = dest;
-        this.filter = filter;
         this.width = width;
-        this.height = height;
+        this.scale = scale;
         this.minHeight = minHeight;
         this.maxHeight = maxHeight;
+        this.policy = policy;
     }
 
     public void compute() {
-        // Same idea as MirrorTask
-        if ((maxHeight - minHeight) * width > SEQUENTIAL_CUTOFF) {
+        if (policy.shouldSplit(maxHeight - minHeight, width)) {
             int mid = minHeight + (maxHeight - minHeight) / 2;
-            GaussianTask left = new GaussianTask(source, dest, filter, width, height, minHeight, mid);
-            GaussianTask right = new GaussianTask(source, dest, filter, width, height, mid, maxHeight);
+            UpsampleTask left = new UpsampleTask(source, sourceWidth, sourceHeight, dest, width, scale, minHeight, mid, policy);
+            UpsampleTask right = new UpsampleTask(source, sourceWidth, sourceHeight, dest, width, scale, mid, maxHeight, policy);
+            Instrumentation.forked();
             right.fork();
             left.compute();
             right.join();
         }
         else {
             for (int i = minHeight; i < maxHeight; i++) {
+                int y0 = Math.min(i / scale, sourceHeight - 1);
+                int y1 = Math.min(y0 + 1, sourceHeight - 1);
+                float fy = Math.min(1f, (i - y0 * scale) / (float) scale);
+                int top = y0 * sourceWidth, bottom = y1 * sourceWidth;
+                int out = i * width;
                 for (int j = 0; j < width; j++) {
-                    Helpers.applyGaussian(source, dest, filter, j, i, width, height);
+                    int x0 = Math.min(j / scale, sourceWidth - 1);
+                    int x1 = Math.min(x0 + 1, sourceWidth - 1);
+                    float fx = Math.min(1f, (j - x0 * scale) / (float) scale);
+                    dest[out + j] = lerp(lerp(source[top + x0], source[top + x1], fx),
+                            lerp(source[bottom + x0], source[bottom + x1], fx), fy);
                 }
             }
         }
     }
+
+    // rounding each step keeps every intermediate a packed pixel, at the cost of at most one level of error
+    private static int lerp(int a, int b, float t) {
+        return RGB.pack(Math.round(RGB.red(a) + t * (RGB.red(b) - RGB.red(a))),
+                Math.round(RGB.green(a) + t * (RGB.green(b) - RGB.green(a))),
+                Math.round(RGB.blue(a) + t * (RGB.blue(b) - RGB.blue(a))));
+    }
+}
+
+// A size bounded cache of image pyramids, so that repeated blurs of the same image only
+// build its pyramid once. Images are keyed by identity, not by their pixels, so an image
+// whose pixels are changed after it is cached must be invalidated, unless they were only
+// changed through setPixel, which the cache notices on its own. The least recently used
+// pyramids are dropped once the pyramids held would take more than maxBytes, counting
+// their original images.
+class PyramidCache {
+    private static final PyramidCache SHARED = new PyramidCache(Runtime.getRuntime().maxMemory() / 8);
+
+    // compares images by identity
+    private static final class Key {
+        final PPMImage image;
+
+        Key(PPMImage image) { this.image = image; }
+
+        public boolean equals(Object o) { return o instanceof Key && ((Key) o).image == image; }
+        public int hashCode() { return System.identityHashCode(image); }
+    }
+
+    private final long maxBytes;
+    private long bytes = 0;
+    private final LinkedHashMap<Key, ImagePyramid> pyramids = new LinkedHashMap<Key, ImagePyramid>(16, 0.75f, true);
+
+    public PyramidCache(long maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("cache size must not be negative");
+        this.maxBytes = maxBytes;
+    }
+
+    public static PyramidCache shared() { return SHARED; }
+
+    public ImagePyramid get(PPMImage image) {
+        return get(image, ForkJoinPool.commonPool());
+    }
+
+    // The pyramid is built outside the lock, so two threads missing on the same image at
+    // once may both build it; only one copy is kept
+    public ImagePyramid get(PPMImage image, ForkJoinPool pool) {
+        Key key = new Key(image);
+        synchronized (this) {
+            ImagePyramid pyramid = current(key);
+            if (pyramid != null)
+                return pyramid;
+        }
+        ImagePyramid built = ImagePyramid.build(image, pool);
+        synchronized (this) {
+            ImagePyramid pyramid = current(key);
+            if (pyramid != null)
+                return pyramid;
+            // a pyramid larger than the whole cache is handed back without being kept
+            if (built.byteSize() <= maxBytes) {
+                pyramids.put(key, built);
+                bytes += built.byteSize();
+                evict();
+            }
+            return built;
+        }
+    }
+
+    // the pyramid cached for key, dropping it if setPixel has changed its image since
+    private ImagePyramid current(Key key) {
+        ImagePyramid pyramid = pyramids.get(key);
+        if (pyramid == null || pyramid.isCurrent())
+            return pyramid;
+        pyramids.remove(key);
+        bytes -= pyramid.byteSize();
+        return null;
+    }
+
+    private void evict() {
+        Iterator<ImagePyramid> it = pyramids.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().byteSize();
+            it.remove();
+        }
+    }
+
+    public synchronized void invalidate(PPMImage image) {
+        ImagePyramid pyramid = pyramids.remove(new Key(image));
+        if (pyramid != null)
+            bytes -= pyramid.byteSize();
+    }
+
+    public synchronized void clear() {
+        pyramids.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() { return pyramids.size(); }
+
+    public synchronized long byteSize() { return bytes; }
+}
+
+// a transform run by a BatchProcessor, which hands it the pool its fork/join tasks should run on
+interface ImageTransform {
+    PPMImage apply(PPMImage image, ForkJoinPool pool) throws IOException;
+}
+
+// what a BatchProcessor run did
+class BatchResult {
+    public final int files;
+    public final long pixels, nanos;
+    // the inputs that could not be read, transformed or written, and why
+    public final Map<Path, Exception> failures;
+
+    public BatchResult(int files, long pixels, long nanos, Map<Path, Exception> failures) {
+        this.files = files;
+        this.pixels = pixels;
+        this.nanos = nanos;
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    public double filesPerSecond() { return nanos == 0 ? 0 : files * 1e9 / nanos; }
+    public double pixelsPerSecond() { return nanos == 0 ? 0 : pixels * 1e9 / nanos; }
+
+    public String toString() {
+        return String.format("%d files in %.3f s, %.2f files/s, %.1f Mpixels/s, %d failed",
+                files, nanos / 1e9, filesPerSecond(), pixelsPerSecond() / 1e6, failures.size());
+    }
+}
+
+// Reads, transforms and writes a batch of PPM files as three overlapping stages joined by
+// bounded queues. Readers and writers block on file I/O, so they run on virtual threads
+// where the JVM has them and fall back to platform threads where it does not. Transforms
+// run inside one fork/join pool, so the parallel streams and image tasks of every transform
+// share its workers instead of each sizing themselves to the machine. When a queue is full
+// the stage feeding it waits, so at most a few queues' worth of images are in memory no
+// matter how many files there are. A file that fails is recorded and the rest carry on.
+class BatchProcessor {
+    // an input on its way through the stages
+    private static final class Job {
+        final Path input, output;
+        PPMImage image;
+
+        Job(Path input, Path output) {
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    // tells a stage thread that its upstream has finished
+    private static final Job END = new Job(null, null);
+
+    private interface Step {
+        void run(Job job) throws Exception;
+    }
+
+    private final List<Path> inputs;
+    private Path outputDir;
+    private ImageTransform transform = (image, pool) -> image;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private int readers = 4, transformers = 2, writers = 4, queueCapacity = 4;
+
+    private BatchProcessor(List<Path> inputs) { this.inputs = inputs; }
+
+    public static BatchProcessor of(List<Path> inputs) { return new BatchProcessor(new ArrayList<Path>(inputs)); }
+
+    // every .ppm file directly inside dir, in name order
+    public static BatchProcessor scan(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return of(files.filter(f -> f.getFileName().toString().endsWith(".ppm") && Files.isRegularFile(f))
+                    .sorted().collect(Collectors.toList()));
+        }
+    }
+
+    // the files named one per line in manifest, relative to its directory, skipping blank lines and # comments
+    public static BatchProcessor manifest(Path manifest) throws IOException {
+        Path base = manifest.toAbsolutePath().getParent();
+        List<Path> inputs = new ArrayList<Path>();
+        for (String line : Files.readAllLines(manifest)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#"))
+                inputs.add(base.resolve(line));
+        }
+        return of(inputs);
+    }
+
+    // Outputs are written here under the name of their input. There is no default, and it
+    // must not be the directory of any input, so a batch can never overwrite its own inputs.
+    public BatchProcessor outputDir(Path dir) { outputDir = dir; return this; }
+    public BatchProcessor transform(ImageTransform t) { transform = t; return this; }
+    public BatchProcessor pool(ForkJoinPool p) { pool = p; return this; }
+
+    // the number of files read, transformed and written at once
+    public BatchProcessor readers(int n) { readers = positive(n, "readers"); return this; }
+    public BatchProcessor transformers(int n) { transformers = positive(n, "transformers"); return this; }
+    public BatchProcessor writers(int n) { writers = positive(n, "writers"); return this; }
+
+    // the most images waiting between two stages
+    public BatchProcessor queueCapacity(int n) { queueCapacity = positive(n, "queue capacity"); return this; }
+
+    private static int positive(int n, String what) {
+        if (n <= 0)
+            throw new IllegalArgumentException(what + " must be positive");
+        return n;
+    }
+
+    public BatchResult run() throws IOException, InterruptedException {
+        List<Job> jobs = jobs();
+        Files.createDirectories(outputDir);
+        try (Trace trace = Instrumentation.begin("batch", pool)) {
+            BlockingQueue<Job> pending = new LinkedBlockingQueue<Job>(jobs);
+            for (int i = 0; i < readers; i++)
+                pending.add(END);
+            BlockingQueue<Job> decoded = new ArrayBlockingQueue<Job>(queueCapacity);
+            BlockingQueue<Job> transformed = new ArrayBlockingQueue<Job>(queueCapacity);
+            Map<Path, Exception> failures = new ConcurrentHashMap<Path, Exception>();
+            AtomicInteger files = new AtomicInteger();
+            LongAdder pixels = new LongAdder();
+            LongAdder bytesRead = new LongAdder();
+            LongAdder bytesWritten = new LongAdder();
+
+            long start = System.nanoTime();
+            ExecutorService threads = ioExecutor();
+            List<Future<Void>> stages = new ArrayList<Future<Void>>();
+            try {
+                stages.addAll(stage(threads, readers, pending, decoded, transformers, failures, job -> {
+                    job.image = new PPMImage(job.input.toString());
+                    bytesRead.add(Files.size(job.input));
+                }));
+                // run the transform inside the pool, so its parallel streams use the pool's workers too
+                stages.addAll(stage(threads, transformers, decoded, transformed, writers, failures, job -> {
+                    PPMImage image = job.image;
+                    job.image = pool.submit(() -> transform.apply(image, pool)).get();
+                }));
+                stages.addAll(stage(threads, writers, transformed, null, 0, failures, job -> {
+                    job.image.toFile(job.output.toString());
+                    bytesWritten.add(Files.size(job.output));
+                    pixels.add(job.image.pixels.length);
+                    files.incrementAndGet();
+                }));
+                for (Future<Void> f : stages)
+                    f.get();
+            }
+            catch (ExecutionException e) {
+                // stage threads catch everything a job throws, so this is a bug in the stages themselves
+                throw new IllegalStateException(e.getCause());
+            }
+            finally {
+                for (Future<Void> f : stages)
+                    f.cancel(true);
+                threads.shutdown();
+            }
+            long nanos = System.nanoTime() - start;
+            trace.read(bytesRead.sum());
+            trace.wrote(bytesWritten.sum());
+            trace.end(pixels.sum());
+            return new BatchResult(files.get(), pixels.sum(), nanos, failures);
+        }
+    }
+
+    // One job per input, checked before anything is read: an input in the output directory
+    // would be overwritten, and two inputs with the same name would overwrite each other
+    private List<Job> jobs() throws IOException {
+        if (outputDir == null)
+            throw new IllegalStateException("an output directory is needed");
+        Path dir = outputDir.toAbsolutePath().normalize();
+        Map<Path, Path> written = new HashMap<Path, Path>();
+        List<Job> jobs = new ArrayList<Job>();
+        for (Path input : inputs) {
+            Path parent = input.toAbsolutePath().normalize().getParent();
+            if (parent.equals(dir) || (Files.exists(dir) && Files.exists(parent) && Files.isSameFile(parent, dir)))
+                throw new IllegalArgumentException("output directory " + outputDir + " holds the input " + input);
+            Path output = outputDir.resolve(input.getFileName());
+            Path other = written.put(output, input);
+            if (other != null)
+                throw new IllegalArgumentException("inputs " + other + " and " + input + " would both be written to " + output);
+            jobs.add(new Job(input, output));
+        }
+        return jobs;
+    }
+
+    // Start count threads that run step on each job from in and pass it on to out. The last
+    // of them to see END sends an END to each of the consumers threads reading out.
+    private static List<Future<Void>> stage(ExecutorService threads, int count, BlockingQueue<Job> in,
+            BlockingQueue<Job> out, int consumers, Map<Path, Exception> failures, Step step) {
+        AtomicInteger live = new AtomicInteger(count);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < count; i++) {
+            futures.add(threads.submit(() -> {
+                try {
+                    for (Job job = in.take(); job != END; job = in.take()) {
+                        try {
+                            step.run(job);
+                            if (out != null)
+                                out.put(job);
+                        }
+                        catch (InterruptedException e) {
+                            throw e;
+                        }
+                        catch (Exception e) {
+                            failures.put(job.input, e instanceof ExecutionException && e.getCause() instanceof Exception
+                                    ? (Exception) e.getCause() : e);
+                            // drop the image now rather than when the batch ends
+                            job.image = null;
+                        }
+                    }
+                }
+                finally {
+                    if (live.decrementAndGet() == 0 && out != null) {
+                        for (int j = 0; j < consumers; j++)
+                            out.put(END);
+                    }
+                }
+                return null;
+            }));
+        }
+        return futures;
+    }
+
+    // Virtual threads arrived in Java 21, so look the factory up rather than linking against
+    // it, and use daemon platform threads on older JVMs
+    protected static ExecutorService ioExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "batch-io");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
 }
 
 // code for creating a Gaussian filter
@@ -289,11 +2330,28 @@ class Gaussian {
         return Math.exp( -(Math.pow((x-mu)/sigma,2.0))/2.0 );
     }
 
-    public static double[][] gaussianFilter(int radius, double sigma) {
+    protected static double[] unnormalizedKernel(int radius, double sigma) {
         int length = 2 * radius + 1;
         double[] hkernel = new double[length];
         for(int i=0; i < length; i++)
             hkernel[i] = gaussian(i, radius, sigma);
+        return hkernel;
+    }
+
+    // The 1D kernel that gaussianFilter takes the outer product of, normalized on its own
+    public static double[] gaussianKernel(int radius, double sigma) {
+        double[] hkernel = unnormalizedKernel(radius, sigma);
+        double kernelsum = 0.0;
+        for(int i=0; i < hkernel.length; i++)
+            kernelsum += hkernel[i];
+        for(int i=0; i < hkernel.length; i++)
+            hkernel[i] /= kernelsum;
+        return hkernel;
+    }
+
+    public static double[][] gaussianFilter(int radius, double sigma) {
+        int length = 2 * radius + 1;
+        double[] hkernel = unnormalizedKernel(radius, sigma);
         double[][] kernel2d = new double[length][length];
         double kernelsum = 0.0;
         for(int i=0; i < length; i++) {
@@ -310,3 +2368,240 @@ class Gaussian {
         return kernel2d;
     }
 }
+
+// receives the measurements of every instrumented operation, see Instrumentation
+interface ImageMetrics {
+    void record(OperationStats stats);
+}
+
+// what a single PPMImage operation did. The task, steal and allocation counts are
+// deltas of process wide counters, so they include any other work that overlapped it.
+class OperationStats {
+    public final String operation;
+    public final long pixels, bytesRead, bytesWritten;
+    public final long nanos;
+    // the fork/join tasks forked by the image tasks, and the steals in the pool the operation ran on
+    public final long tasksForked, steals;
+    // bytes allocated by every thread, or -1 when the JVM cannot measure it
+    public final long allocatedBytes;
+    // the time spent in each named phase, in the order the phases first finished
+    public final Map<String, Long> phaseNanos;
+
+    public OperationStats(String operation, long pixels, long bytesRead, long bytesWritten, long nanos,
+            long tasksForked, long steals, long allocatedBytes, Map<String, Long> phaseNanos) {
+        this.operation = operation;
+        this.pixels = pixels;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.nanos = nanos;
+        this.tasksForked = tasksForked;
+        this.steals = steals;
+        this.allocatedBytes = allocatedBytes;
+        this.phaseNanos = Collections.unmodifiableMap(phaseNanos);
+    }
+
+    public double pixelsPerSecond() { return nanos == 0 ? 0 : pixels * 1e9 / nanos; }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%s: %.3f ms, %.1f Mpixels/s, read %d B, wrote %d B, forked %d, stolen %d, allocated %d B",
+                operation, nanos / 1e6, pixelsPerSecond() / 1e6, bytesRead, bytesWritten, tasksForked, steals, allocatedBytes));
+        for (Map.Entry<String, Long> phase : phaseNanos.entrySet())
+            sb.append(String.format(", %s %.3f ms", phase.getKey(), phase.getValue() / 1e6));
+        return sb.toString();
+    }
+}
+
+@Name("hw5.ImageOperation")
+@Label("Image Operation")
+@Category({ "hw5", "PPMImage" })
+@StackTrace(false)
+class ImageOperationEvent extends Event {
+    @Label("Operation") String operation;
+    @Label("Pixels") long pixels;
+    @Label("Bytes Read") @DataAmount long bytesRead;
+    @Label("Bytes Written") @DataAmount long bytesWritten;
+    @Label("Tasks Forked") long tasksForked;
+    @Label("Steals") long steals;
+    @Label("Allocated") @DataAmount long allocatedBytes;
+}
+
+@Name("hw5.ImagePhase")
+@Label("Image Operation Phase")
+@Category({ "hw5", "PPMImage" })
+@StackTrace(false)
+class ImagePhaseEvent extends Event {
+    @Label("Operation") String operation;
+    @Label("Phase") String phase;
+}
+
+// Turns measurement of the PPMImage operations on and off. An operation is measured
+// when an ImageMetrics is installed or a JFR recording has the hw5 events enabled;
+// otherwise begin hands back a shared no-op Trace, so a disabled operation only pays
+// for a couple of field reads. The JFR event types are only looked up once the flight
+// recorder is running, since loading them starts up its metadata repository, which
+// takes longer than most operations.
+class Instrumentation {
+    private static volatile ImageMetrics metrics;
+    // the number of operations being measured, so that tasks only count forks while someone is listening
+    private static final AtomicInteger active = new AtomicInteger();
+    private static final LongAdder forks = new LongAdder();
+
+    // loaded the first time the flight recorder is found running
+    private static final class Events {
+        static final EventType operation = EventType.getEventType(ImageOperationEvent.class);
+        static final EventType phase = EventType.getEventType(ImagePhaseEvent.class);
+    }
+
+    // install sink to receive every operation's stats, or null to stop
+    public static void setMetrics(ImageMetrics sink) { metrics = sink; }
+
+    public static Trace begin(String operation, ForkJoinPool pool) {
+        ImageMetrics sink = metrics;
+        boolean jfr = FlightRecorder.isInitialized() && (Events.operation.isEnabled() || Events.phase.isEnabled());
+        if (sink == null && !jfr)
+            return Trace.DISABLED;
+        active.incrementAndGet();
+        return new Trace(operation, pool, sink, jfr, jfr && Events.phase.isEnabled());
+    }
+
+    protected static void finished() { active.decrementAndGet(); }
+
+    // called by the fork/join image tasks each time they fork
+    protected static void forked() {
+        if (active.get() > 0)
+            forks.increment();
+    }
+
+    protected static long forks() { return forks.sum(); }
+
+    // the bytes allocated so far by every live thread, which includes the pool's workers,
+    // or -1 when the JVM cannot measure it
+    protected static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        long total = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(bean.getAllThreadIds()))
+            if (bytes > 0)
+                total += bytes;
+        return total;
+    }
+}
+
+// The measurement of one operation in progress. phase ends the current phase and
+// starts the next, and end reports the whole operation. A Trace belongs to the thread
+// that began it. Open it in a try-with-resources: close does nothing after end, but if
+// the operation failed before reaching end it stops measuring without reporting.
+class Trace implements AutoCloseable {
+    static final Trace DISABLED = new Trace();
+
+    private final boolean enabled;
+    private final String operation;
+    private final ForkJoinPool pool;
+    private final ImageMetrics sink;
+    private final long start, steals0, forks0, allocated0;
+    // null unless the flight recorder was running when the operation began
+    private final ImageOperationEvent event;
+    private final boolean tracePhases;
+    private ImagePhaseEvent phaseEvent;
+    private final Map<String, Long> phaseNanos;
+    private long phaseStart, bytesRead, bytesWritten;
+    private boolean ended;
+
+    private Trace() {
+        enabled = false;
+        operation = null;
+        pool = null;
+        sink = null;
+        start = steals0 = forks0 = allocated0 = 0;
+        event = null;
+        tracePhases = false;
+        phaseNanos = null;
+    }
+
+    Trace(String operation, ForkJoinPool pool, ImageMetrics sink, boolean jfr, boolean tracePhases) {
+        this.enabled = true;
+        this.operation = operation;
+        this.pool = pool;
+        this.sink = sink;
+        this.tracePhases = tracePhases;
+        this.phaseNanos = new LinkedHashMap<String, Long>();
+        this.steals0 = pool.getStealCount();
+        this.forks0 = Instrumentation.forks();
+        this.allocated0 = Instrumentation.allocatedBytes();
+        this.event = jfr ? new ImageOperationEvent() : null;
+        if (event != null)
+            event.begin();
+        startPhase();
+        this.start = phaseStart;
+    }
+
+    private void startPhase() {
+        phaseStart = System.nanoTime();
+        if (tracePhases) {
+            phaseEvent = new ImagePhaseEvent();
+            phaseEvent.begin();
+        }
+    }
+
+    public void read(long bytes) {
+        if (enabled)
+            bytesRead += bytes;
+    }
+
+    public void wrote(long bytes) {
+        if (enabled)
+            bytesWritten += bytes;
+    }
+
+    // end the phase called name, adding to its time if it has run before
+    public void phase(String name) {
+        if (!enabled || ended)
+            return;
+        phaseNanos.merge(name, System.nanoTime() - phaseStart, Long::sum);
+        if (tracePhases) {
+            phaseEvent.end();
+            if (phaseEvent.shouldCommit()) {
+                phaseEvent.operation = operation;
+                phaseEvent.phase = name;
+                phaseEvent.commit();
+            }
+        }
+        startPhase();
+    }
+
+    public void end(long pixels) {
+        if (!enabled || ended)
+            return;
+        ended = true;
+        long nanos = System.nanoTime() - start;
+        Instrumentation.finished();
+        long allocated = allocated0 < 0 ? -1 : Instrumentation.allocatedBytes() - allocated0;
+        long forked = Instrumentation.forks() - forks0;
+        long steals = pool.getStealCount() - steals0;
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation;
+                event.pixels = pixels;
+                event.bytesRead = bytesRead;
+                event.bytesWritten = bytesWritten;
+                event.tasksForked = forked;
+                event.steals = steals;
+                event.allocatedBytes = allocated;
+                event.commit();
+            }
+        }
+        if (sink != null)
+            sink.record(new OperationStats(operation, pixels, bytesRead, bytesWritten, nanos, forked, steals,
+                    allocated, phaseNanos));
+    }
+
+    public void close() {
+        if (!enabled || ended)
+            return;
+        ended = true;
+        Instrumentation.finished();
+    }
+}
@@ -2,6 +2,10 @@ import java.io.*;
 
 class Tester {
     public static void main(String[] args) throws FileNotFoundException, IOException {
+        // print what each operation did, as measured by Instrumentation
+        if (args.length > 0 && args[0].equals("-metrics"))
+            Instrumentation.setMetrics(System.out::println);
+
         PPMImage img = new PPMImage("florence.ppm");
         
         long time0 = System.nanoTime();
@@ -38,5 +42,76 @@ class Tester {
         time1 = System.nanoTime();
         System.out.println("GB1:       " + (time1 - time0)/1000000000.);
         gb1.toFile("florencegb1.ppm");
+
+        time0 = System.nanoTime();
+        PPMImage fused = new FusedTransform().negate().negate().greyscale().greyscale().mirrorImage().apply(img);
+        time1 = System.nanoTime();
+        System.out.println("Fused:     " + (time1 - time0)/1000000000.);
+        fused.toFile("florencefused.ppm");
+
+        time0 = System.nanoTime();
+        ImagePipeline.from("florence.ppm").negate().greyscale().mirrorImage().gaussianBlur(60, 2)
+            .stripRows(64).run("florencepipe.ppm");
+        time1 = System.nanoTime();
+        System.out.println("Pipeline:  " + (time1 - time0)/1000000000.);
+
+        // sigma 2 is too small to leave full resolution, but a sigma of 20 blurs on a level an eighth the size
+        time0 = System.nanoTime();
+        PPMImage gbPyramid = img.gaussianBlurPyramid(60, 20);
+        time1 = System.nanoTime();
+        System.out.println("GB pyramid:" + (time1 - time0)/1000000000.);
+        gbPyramid.toFile("florencegbpyr.ppm");
+        checkPyramidError(img.gaussianBlur(60, 20), gbPyramid, 20);
+
+        // the pyramid of an image painted black through setPixel must not be the one cached before
+        PPMImage black = new PPMImage(img.width, img.height, img.maxColorVal, img.pixels.clone());
+        black.gaussianBlurPyramid(60, 20);
+        for (int y = 0; y < black.height; y++)
+            for (int x = 0; x < black.width; x++)
+                black.setPixel(x, y, new RGB(0, 0, 0));
+        if (black.gaussianBlurPyramid(60, 20).getPixel(black.width / 2, black.height / 2).R != 0)
+            throw new IllegalStateException("pyramid blur used a pyramid of the old pixels");
+
+        // only the window and its halo are blurred, so this should match the same window of gb1
+        Region preview = new Region(img.width / 4, img.height / 4, img.width / 4, img.height / 4);
+        time0 = System.nanoTime();
+        PPMImage gbRegion = img.gaussianBlur(60, 2, preview);
+        time1 = System.nanoTime();
+        System.out.println("GB1 region:" + (time1 - time0)/1000000000.);
+        gbRegion.toFile("florencegb1roi.ppm");
+        new PPMImage("florence.ppm", preview).toFile("florenceroi.ppm");
+
+        time0 = System.nanoTime();
+        gb1.toTiledFile("florencegb1.pti");
+        TiledIO.read("florencegb1.pti").toFile("florencetiled.ppm");
+        time1 = System.nanoTime();
+        System.out.println("Tiled:     " + (time1 - time0)/1000000000.);
+
+        // mirror has been written out, so it can be overwritten; mirroring it back in place gives img again
+        BlurBuffers buffers = new BlurBuffers(img.width, img.height);
+        time0 = System.nanoTime();
+        mirror.mirrorImageInPlace().negateInPlace().negateInPlace().gaussianBlur(60, 2, buffers).toFile("florencegbbuf.ppm");
+        time1 = System.nanoTime();
+        System.out.println("In place:  " + (time1 - time0)/1000000000.);
+    }
+
+    // compare a pyramid blur with the exact one, separately within sigma of the edges and
+    // away from them, against the bounds ImagePyramid.gaussianBlur documents
+    static void checkPyramidError(PPMImage exact, PPMImage pyramid, double sigma) {
+        int inner = 0, edge = 0;
+        for (int i = 0; i < exact.pixels.length; i++) {
+            int x = i % exact.width, y = i / exact.width;
+            int a = exact.pixels[i], b = pyramid.pixels[i];
+            int error = Math.max(Math.abs(RGB.red(a) - RGB.red(b)),
+                    Math.max(Math.abs(RGB.green(a) - RGB.green(b)), Math.abs(RGB.blue(a) - RGB.blue(b))));
+            int distance = Math.min(Math.min(x, y), Math.min(exact.width - 1 - x, exact.height - 1 - y));
+            if (distance > sigma)
+                inner = Math.max(inner, error);
+            else
+                edge = Math.max(edge, error);
+        }
+        System.out.println("GB pyramid error: " + inner + " inside, " + edge + " at the edges");
+        if (inner > 4 || edge > 32)
+            throw new IllegalStateException("pyramid blur is too far from the exact blur");
     }
 }